@@ -0,0 +1,44 @@
+package ht.ueh.first.spring.restatm.benchmarks;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coût d'une écriture et d'une lecture sur un seul {@link Account}, hors moteur :
+ * temps et allocations par opération ({@code -prof gc}) de la version posée à chaque écriture.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AccountVersionBenchmark {
+
+    private Account account;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        account = new Account("V1", "Bench", 1_000_000.00, "0000");
+    }
+
+    @Benchmark
+    public long depositThenWithdraw() {
+        account.apply(TransactionType.DEPOT, 100);
+        return account.debit(TransactionType.RETRAIT, 100);
+    }
+
+    @Benchmark
+    public long balance() {
+        return account.balanceCents();
+    }
+
+    @Benchmark
+    public AccountStats stats() {
+        return account.stats();
+    }
+}
@@ -0,0 +1,64 @@
+package ht.ueh.first.spring.restatm.benchmarks;
+
+import ht.ueh.first.spring.restatm.manager.AccountIndexBenchmark;
+import ht.ueh.first.spring.restatm.manager.TransactionHistoryBenchmark;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lance la suite de benchmarks à 1, 4 et N threads (N = nombre de processeurs)
+ * et écrit tous les résultats dans un seul fichier, JSON par défaut.
+ * <p>
+ * Accepte les options de la ligne de commande JMH ({@code -p accounts=4,1000},
+ * {@code -wi}, {@code -i}, {@code -rff}, ...). Avec {@code -t}, seul ce nombre
+ * de threads est mesuré.
+ */
+public class AtmBenchmarks {
+
+    private static final String DEFAULT_RESULT = "target/jmh-results.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+
+        Set<Integer> threadCounts = new LinkedHashSet<>();
+        if (options.getThreads().hasValue()) {
+            threadCounts.add(options.getThreads().get());
+        } else {
+            threadCounts.add(1);
+            threadCounts.add(4);
+            threadCounts.add(Runtime.getRuntime().availableProcessors());
+        }
+        String result = options.getResult().orElse(DEFAULT_RESULT);
+        ResultFormatType format = options.getResultFormat().orElse(ResultFormatType.JSON);
+
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            ChainedOptionsBuilder run = new OptionsBuilder()
+                    .parent(options)
+                    .threads(threads)
+                    .resultFormat(format)
+                    .result(result);
+            if (options.getIncludes().isEmpty()) {
+                run.include(AtmManagerBenchmark.class.getName());
+                run.include(AccountVersionBenchmark.class.getName());
+                run.include(AccountIndexBenchmark.class.getName());
+                run.include(AtmShardsBenchmark.class.getName());
+                run.include(TransactionHistoryBenchmark.class.getName());
+            }
+            results.addAll(new Runner(run.build()).run());
+            // Le fichier cumule toutes les passes ; un arrêt en cours de route garde les précédentes
+            ResultFormatFactory.getInstance(format, result).writeOut(results);
+        }
+        System.out.println("Results written to " + result);
+    }
+}
@@ -0,0 +1,175 @@
+package ht.ueh.first.spring.restatm.benchmarks;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test de charge HTTP en boucle fermée contre une application déjà démarrée :
+ * chaque client (un thread virtuel) enchaîne dépôts et consultations de solde
+ * sans pause. Affiche le débit et les percentiles de latence.
+ * <p>
+ * Pour comparer les modes d'exécution, lancer l'application une fois avec
+ * {@code spring.threads.virtual.enabled=false} puis avec {@code true}, et
+ * le même test contre chacune.
+ * <p>
+ * Options : {@code --url http://localhost:8080/atm}, {@code --clients 10000},
+ * {@code --duration 30} et {@code --warmup 10} (secondes), {@code --accounts 1000},
+ * {@code --reads 50} (% de consultations), {@code --api /api/atm}
+ * ({@code /api/reactive/atm} pour l'édition WebFlux).
+ */
+public class AtmLoadTest {
+
+    private static final int FIRST_ACCOUNT = 900_000_000;
+
+    private final String url;
+    private final int clients;
+    private final int accounts;
+    private final int readPercent;
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+    private final AtomicLong errors = new AtomicLong();
+
+    private AtmLoadTest(String url, int clients, int accounts, int readPercent) {
+        this.url = url;
+        this.clients = clients;
+        this.accounts = accounts;
+        this.readPercent = readPercent;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:8080/atm";
+        int clients = 10_000;
+        int duration = 30;
+        int warmup = 10;
+        int accounts = 1000;
+        int reads = 50;
+        String api = "/api/atm";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--url" -> url = value;
+                case "--clients" -> clients = Integer.parseInt(value);
+                case "--duration" -> duration = Integer.parseInt(value);
+                case "--warmup" -> warmup = Integer.parseInt(value);
+                case "--accounts" -> accounts = Integer.parseInt(value);
+                case "--reads" -> reads = Integer.parseInt(value);
+                case "--api" -> api = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        new AtmLoadTest(url + api, clients, accounts, reads).run(warmup, duration);
+    }
+
+    private void run(int warmupSeconds, int durationSeconds) throws Exception {
+        for (int i = 0; i < accounts; i++) {
+            // Déjà créé lors d'un test précédent : 400, sans importance
+            send(post("/accounts", "{\"accountNumber\":\"" + (FIRST_ACCOUNT + i)
+                    + "\",\"owner\":\"Load\",\"balance\":1000000000.0,\"pin\":\"0000\"}"));
+        }
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSeconds * 1_000_000_000L;
+        long end = measureFrom + durationSeconds * 1_000_000_000L;
+        System.out.printf("%d clients, %d s warmup + %d s measured against %s%n",
+                clients, warmupSeconds, durationSeconds, url);
+
+        List<Future<long[]>> results = new ArrayList<>(clients);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                int seed = c;
+                results.add(executor.submit(() -> client(seed, measureFrom, end)));
+            }
+        }
+
+        long[] all = new long[0];
+        int count = 0;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            int n = (int) latencies[0];
+            if (count + n > all.length) {
+                all = Arrays.copyOf(all, Math.max(all.length * 2, count + n));
+            }
+            System.arraycopy(latencies, 1, all, count, n);
+            count += n;
+        }
+        Arrays.sort(all, 0, count);
+        System.out.printf("requests=%d errors=%d throughput=%.0f req/s%n",
+                count, errors.get(), count / (double) durationSeconds);
+        System.out.printf("latency ms: p50=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                percentile(all, count, 50), percentile(all, count, 99),
+                percentile(all, count, 99.9), count == 0 ? 0 : all[count - 1] / 1e6);
+    }
+
+    /**
+     * Boucle d'un client ; retourne [nombre, latences en ns...] des requêtes de la fenêtre mesurée
+     */
+    private long[] client(int seed, long measureFrom, long end) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] latencies = new long[64];
+        int n = 0;
+        while (true) {
+            String account = String.valueOf(FIRST_ACCOUNT + random.nextInt(accounts));
+            HttpRequest request = random.nextInt(100) < readPercent
+                    ? HttpRequest.newBuilder(URI.create(url + "/accounts/" + account + "/balance")).GET().build()
+                    : post("/accounts/" + account + "/deposit", "{\"amount\":1.0}");
+            long begin = System.nanoTime();
+            if (begin >= end) {
+                break;
+            }
+            int status = send(request);
+            long finished = System.nanoTime();
+            if (begin >= measureFrom && finished <= end) {
+                if (status < 200 || status >= 300) {
+                    errors.incrementAndGet();
+                }
+                if (++n == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                }
+                latencies[n] = finished - begin;
+            }
+        }
+        latencies[0] = n;
+        return latencies;
+    }
+
+    private HttpRequest post(String path, String json) {
+        return HttpRequest.newBuilder(URI.create(url + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+
+    /**
+     * @return le code HTTP, ou -1 si la requête a échoué (connexion refusée, délai...)
+     */
+    private int send(HttpRequest request) {
+        try {
+            return http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static double percentile(long[] sorted, int count, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,152 @@
+package ht.ueh.first.spring.restatm.benchmarks;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.manager.AtmRepository;
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Débit des opérations du moteur {@link AtmManager}, en mémoire (sans journal).
+ * <p>
+ * Paramètres : nombre de comptes (4 à 10M) et répartition des accès,
+ * {@code uniform} (tous les comptes équiprobables) ou {@code skewed} (90 % des
+ * opérations sur 1 % des comptes, au moins un : contention sur des comptes chauds).
+ * Le nombre de threads est fixé par {@link AtmBenchmarks}.
+ * <p>
+ * 10M comptes demandent un tas de plusieurs Go : {@code -jvmArgsAppend -Xmx8g}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtmManagerBenchmark {
+
+    /**
+     * Au-delà, la banque est recréée entre deux itérations : l'historique
+     * des opérations d'écriture ne grossit pas sans limite
+     */
+    private static final long MAX_HISTORY = 20_000_000;
+
+    @State(Scope.Benchmark)
+    public static class Bank {
+
+        @Param({"4", "1000", "100000", "10000000"})
+        int accounts;
+
+        @Param({"uniform", "skewed"})
+        String access;
+
+        @Param({"heap", "offheap"})
+        String store;
+
+        AtmRepository repository;
+        AtmManager manager;
+        String[] numbers;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            numbers = new String[accounts];
+            for (int i = 0; i < accounts; i++) {
+                numbers[i] = "B" + i;
+            }
+            open();
+        }
+
+        @Setup(Level.Iteration)
+        public void trimHistory() throws IOException {
+            if (!manager.getAllTransactions(MAX_HISTORY, 1).isEmpty()) {
+                open();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            close();
+        }
+
+        private void open() throws IOException {
+            close();
+            repository = new AtmRepository();
+            manager = new AtmManager(repository, store, "");
+            for (String number : numbers) {
+                manager.createAccount(new Account(number, "Bench", 1_000_000_000.0, "0000"));
+            }
+            // Historique initial pour getTransactions : jusqu'à 10 lignes par compte, 10M au plus
+            long rows = Math.min(accounts * 10L, 10_000_000L);
+            for (long i = 0; i < rows; i++) {
+                manager.deposit(numbers[(int) (i % accounts)], 1.0);
+            }
+        }
+
+        private void close() throws IOException {
+            if (manager != null) {
+                manager.close();
+                repository.close();
+                manager = null;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        private static final int PICKS = 1 << 16;
+
+        private final int[] picks = new int[PICKS];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Bank bank) {
+            // Tirages précalculés : le générateur aléatoire reste hors de la mesure
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+            int hot = Math.max(1, bank.accounts / 100);
+            boolean skewed = "skewed".equals(bank.access);
+            for (int i = 0; i < PICKS; i++) {
+                picks[i] = skewed && random.nextInt(10) < 9
+                        ? random.nextInt(hot)
+                        : random.nextInt(bank.accounts);
+            }
+        }
+
+        String next(Bank bank) {
+            return bank.numbers[picks[next++ & (PICKS - 1)]];
+        }
+    }
+
+    @Benchmark
+    public Account deposit(Bank bank, Picker picker) {
+        return bank.manager.deposit(picker.next(bank), 1.0);
+    }
+
+    @Benchmark
+    public Account withdraw(Bank bank, Picker picker) {
+        return bank.manager.withdraw(picker.next(bank), 1.0);
+    }
+
+    @Benchmark
+    public void transfer(Bank bank, Picker picker) {
+        bank.manager.transfer(picker.next(bank), picker.next(bank), 1.0);
+    }
+
+    @Benchmark
+    public double getBalance(Bank bank, Picker picker) {
+        return bank.manager.getBalance(picker.next(bank));
+    }
+
+    @Benchmark
+    public List<Transaction> getTransactions(Bank bank, Picker picker) {
+        return bank.manager.getTransactions(picker.next(bank));
+    }
+
+    @Benchmark
+    public List<Account> getAllAccounts(Bank bank) {
+        return bank.manager.getAllAccounts();
+    }
+}
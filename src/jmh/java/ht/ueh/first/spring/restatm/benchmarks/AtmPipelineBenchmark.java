@@ -0,0 +1,86 @@
+package ht.ueh.first.spring.restatm.benchmarks;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.manager.AtmRepository;
+import ht.ueh.first.spring.restatm.models.Account;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Latence des opérations (percentiles) avec et sans la chaîne de traitement
+ * ({@code atm.engine.ring-size}, 0 = les requêtes modifient les comptes directement),
+ * en mémoire ou avec le journal sur disque ({@code wal}).
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtmPipelineBenchmark {
+
+    private static final int ACCOUNTS = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class Bank {
+
+        @Param({"0", "4096"})
+        int ringSize;
+
+        @Param({"false", "true"})
+        boolean wal;
+
+        AtmManager manager;
+        AtmRepository repository;
+        Path directory;
+        String[] numbers;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            // Recréée à chaque itération : l'historique et le journal ne grossissent pas sans limite
+            directory = Files.createTempDirectory("atm-pipeline-bench");
+            repository = wal ? new AtmRepository(true, directory.toString(), 64L << 20, 3600) : new AtmRepository();
+            manager = new AtmManager(repository, "heap", "", 100_000, 86_400, 0, ringSize);
+            numbers = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                numbers[i] = "P" + i;
+                manager.createAccount(new Account(numbers[i], "Bench", 1_000_000_000.0, "0000"));
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            manager.close();
+            repository.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        private final SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+
+        String next(Bank bank) {
+            return bank.numbers[random.nextInt(ACCOUNTS)];
+        }
+    }
+
+    @Benchmark
+    public Account deposit(Bank bank, Picker picker) {
+        return bank.manager.deposit(picker.next(bank), 1.0);
+    }
+
+    @Benchmark
+    public void transfer(Bank bank, Picker picker) {
+        bank.manager.transfer(picker.next(bank), picker.next(bank), 1.0);
+    }
+}
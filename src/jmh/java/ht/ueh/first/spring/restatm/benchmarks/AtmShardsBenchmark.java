@@ -0,0 +1,86 @@
+package ht.ueh.first.spring.restatm.benchmarks;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.manager.AtmRepository;
+import ht.ueh.first.spring.restatm.models.Account;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Débit du moteur selon le nombre de fragments ({@code atm.engine.shards}),
+ * en mémoire (sans journal). {@code shards = 0} : sans fragments, les requêtes
+ * modifient les comptes directement.
+ * <p>
+ * Chaque appel lance {@link #IN_FLIGHT} opérations asynchrones puis les attend :
+ * les fragments restent occupés quel que soit le nombre de threads du benchmark.
+ * Le débit ne peut croître avec les fragments que jusqu'au nombre de cœurs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtmShardsBenchmark {
+
+    private static final int IN_FLIGHT = 64;
+    private static final int ACCOUNTS = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class Bank {
+
+        @Param({"0", "1", "2", "4", "8"})
+        int shards;
+
+        AtmManager manager;
+        String[] numbers;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // Recréée à chaque itération : l'historique ne grossit pas sans limite
+            manager = new AtmManager(new AtmRepository(), "heap", "", 100_000, 86_400, shards, 0);
+            numbers = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                numbers[i] = "S" + i;
+                manager.createAccount(new Account(numbers[i], "Bench", 1_000_000_000.0, "0000"));
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            manager.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        private final SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+
+        String next(Bank bank) {
+            return bank.numbers[random.nextInt(ACCOUNTS)];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IN_FLIGHT)
+    public void deposit(Bank bank, Picker picker) {
+        CompletableFuture<?>[] pending = new CompletableFuture<?>[IN_FLIGHT];
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            pending[i] = bank.manager.depositAsync(picker.next(bank), 1.0);
+        }
+        CompletableFuture.allOf(pending).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IN_FLIGHT)
+    public void transfer(Bank bank, Picker picker) {
+        CompletableFuture<?>[] pending = new CompletableFuture<?>[IN_FLIGHT];
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            pending[i] = bank.manager.transferAsync(picker.next(bank), picker.next(bank), 1.0);
+        }
+        CompletableFuture.allOf(pending).join();
+    }
+}
@@ -0,0 +1,104 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recherche d'un compte par numéro : {@link AccountIndex} (table primitive pour
+ * les numéros numériques) contre la ConcurrentHashMap de String utilisée jusque-là.
+ * <p>
+ * Latence moyenne d'une recherche ; la mémoire occupée par l'index seul (hors
+ * comptes et numéros, créés avant la mesure) est affichée à la mise en place
+ * de chaque essai, en octets par compte.
+ * <p>
+ * Dans le paquet {@code manager} : l'index n'est pas public.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountIndexBenchmark {
+
+    private static final int PICKS = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class Index {
+
+        @Param({"1000", "1000000"})
+        int accounts;
+
+        @Param({"map", "index"})
+        String impl;
+
+        String[] numbers;
+        Map<String, Account> map;
+        AccountIndex index;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            numbers = new String[accounts];
+            Account[] values = new Account[accounts];
+            for (int i = 0; i < accounts; i++) {
+                numbers[i] = String.valueOf(100_000 + i);
+                values[i] = new Account(numbers[i], "Bench", 0, "0000");
+            }
+            long before = usedHeap();
+            if ("map".equals(impl)) {
+                map = new ConcurrentHashMap<>();
+                for (int i = 0; i < accounts; i++) {
+                    map.put(numbers[i], values[i]);
+                }
+            } else {
+                index = new AccountIndex();
+                for (int i = 0; i < accounts; i++) {
+                    index.put(numbers[i], values[i]);
+                }
+            }
+            System.out.printf("%n%s, %d accounts: %.1f bytes per account%n",
+                    impl, accounts, (double) (usedHeap() - before) / accounts);
+        }
+
+        Account get(String accountNumber) {
+            return map != null ? map.get(accountNumber) : index.get(accountNumber);
+        }
+
+        private static long usedHeap() {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+            }
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        private final String[] keys = new String[PICKS];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Index index) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+            for (int i = 0; i < PICKS; i++) {
+                // Copie, comme le numéro lu dans l'URL d'une requête : pas la même instance que la clé
+                keys[i] = new String(index.numbers[random.nextInt(index.accounts)]);
+            }
+        }
+
+        String next(Index index) {
+            return keys[next++ & (PICKS - 1)];
+        }
+    }
+
+    @Benchmark
+    public Account lookup(Index index, Picker picker) {
+        return index.get(picker.next(index));
+    }
+}
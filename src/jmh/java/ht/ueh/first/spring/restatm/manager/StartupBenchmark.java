@@ -0,0 +1,118 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Démarrage à partir d'un instantané : 1M comptes et 50M transactions, tables
+ * des comptes sur le tas ou hors du tas. La mesure couvre le chargement de
+ * l'instantané et la reconstruction des historiques par compte ; les colonnes
+ * des blocs d'historique ne sont pas lues.
+ * <p>
+ * La préparation écrit l'état une fois par essai, par le journal, et dure
+ * plusieurs minutes. Le répertoire est pris dans {@code java.io.tmpdir}.
+ * Dans le paquet {@code manager} : l'instantané est forcé avant la mesure.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class StartupBenchmark {
+
+    // Écrivains concurrents de la préparation : les écritures du journal sont groupées
+    private static final int WRITERS = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Data {
+
+        @Param({"1000000"})
+        int accounts;
+
+        @Param({"50000000"})
+        long transactions;
+
+        @Param({"heap", "offheap"})
+        String store;
+
+        Path directory;
+        AtmRepository repository;
+        AtmManager manager;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            directory = Files.createTempDirectory("atm-startup");
+            AtmRepository writer = repository();
+            try (AtmManager bank = new AtmManager(writer, store, "")) {
+                inParallel(accounts, i -> bank.createAccount(new Account("S" + i, "Bench", 1_000.0, "0000")));
+                inParallel(transactions, i -> bank.depositCents("S" + (i % accounts), 100));
+            }
+            // Fermer le journal écrit l'instantané : la mesure n'a rien à rejouer
+            writer.close();
+        }
+
+        @TearDown(Level.Iteration)
+        public void closeBank() throws IOException {
+            if (manager != null) {
+                manager.close();
+                repository.close();
+                manager = null;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        AtmRepository repository() {
+            // Pas d'instantané périodique : seul celui de la fermeture est écrit
+            return new AtmRepository(true, directory.toString(), 64L << 20, 0);
+        }
+    }
+
+    @Benchmark
+    public AtmManager open(Data data) {
+        data.repository = data.repository();
+        data.manager = new AtmManager(data.repository, data.store, "");
+        return data.manager;
+    }
+
+    /**
+     * Exécute {@code operation} pour 0 ≤ i < count, répartie entre les écrivains
+     */
+    private static void inParallel(long count, LongConsumer operation) throws InterruptedException, ExecutionException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> writers = new ArrayList<>(WRITERS);
+            for (int w = 0; w < WRITERS; w++) {
+                long first = w;
+                writers.add(executor.submit(() -> {
+                    for (long i = first; i < count; i += WRITERS) {
+                        operation.accept(i);
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lecture de l'historique à 1M et 10M transactions au total : historique complet
+ * d'un petit compte (3 lignes) et d'un compte actif (1 000 lignes), page de 100 lignes
+ * d'un compte ou du journal entier, export en flux d'un compte et du journal entier.
+ * <p>
+ * Le nombre de lignes par compte ne change pas avec la taille du journal : seuls
+ * l'export du journal entier et la mémoire doivent grandir avec elle.
+ * <p>
+ * 10M transactions demandent environ 1 Go de tas : {@code -jvmArgsAppend -Xmx2g}.
+ * Dans le paquet {@code manager} : le journal et les historiques ne sont pas publics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TransactionHistoryBenchmark {
+
+    private static final int ROWS_PER_ACCOUNT = 1_000;
+    private static final int PAGE = 100;
+    private static final int PICKS = 1 << 12;
+
+    @State(Scope.Benchmark)
+    public static class History {
+
+        @Param({"1000000", "10000000"})
+        int transactions;
+
+        TransactionLog log;
+        AccountHistory small;
+        AccountHistory[] busy;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            log = new TransactionLog();
+            small = new AccountHistory(log.registerAccount("SMALL"));
+            busy = new AccountHistory[transactions / ROWS_PER_ACCOUNT];
+            for (int i = 0; i < busy.length; i++) {
+                busy[i] = new AccountHistory(log.registerAccount("H" + i));
+            }
+            long timestamp = TransactionLog.epochNanos();
+            // Le petit compte : une ligne au début, au milieu et à la fin du journal
+            for (int i = 0; i < transactions; i++) {
+                if (i == 0 || i == transactions / 2 || i == transactions - 1) {
+                    small.add(log.append(small.accountKey, TransactionType.DEPOT, 100, 100, timestamp++));
+                }
+                AccountHistory history = busy[i % busy.length];
+                history.add(log.append(history.accountKey, TransactionType.DEPOT, 100, 100, timestamp++));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Picker {
+
+        private final int[] accounts = new int[PICKS];
+        private final long[] positions = new long[PICKS];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(History history) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+            long size = history.transactions;
+            for (int i = 0; i < PICKS; i++) {
+                accounts[i] = random.nextInt(history.busy.length);
+                positions[i] = random.nextLong(Math.max(1, size - PAGE));
+            }
+        }
+
+        int account() {
+            return accounts[next++ & (PICKS - 1)];
+        }
+
+        long position() {
+            return positions[next++ & (PICKS - 1)];
+        }
+    }
+
+    @Benchmark
+    public List<Transaction> smallAccountHistory(History history) {
+        return history.small.toList(history.log);
+    }
+
+    @Benchmark
+    public List<Transaction> busyAccountHistory(History history, Picker picker) {
+        return history.busy[picker.account()].toList(history.log);
+    }
+
+    @Benchmark
+    public List<Transaction> accountPage(History history, Picker picker) {
+        return history.busy[picker.account()].page(history.log, picker.position(), PAGE);
+    }
+
+    @Benchmark
+    public List<Transaction> logPage(History history, Picker picker) {
+        return history.log.page(picker.position(), PAGE);
+    }
+
+    @Benchmark
+    public void accountExport(History history, Picker picker, Blackhole blackhole) {
+        history.busy[picker.account()].forEach(history.log, Long.MIN_VALUE, Long.MAX_VALUE, blackhole::consume);
+    }
+
+    @Benchmark
+    public void logExport(History history, Blackhole blackhole) {
+        history.log.forEach(blackhole::consume);
+    }
+}
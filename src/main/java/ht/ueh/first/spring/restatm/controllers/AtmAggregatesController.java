@@ -0,0 +1,45 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.models.BankAggregates;
+import ht.ueh.first.spring.restatm.models.Money;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Totaux de la banque en temps réel, pour l'exploitation
+ */
+@RestController
+@RequestMapping("/api/atm")
+public class AtmAggregatesController {
+
+    private final AtmManager atmManager;
+
+    public AtmAggregatesController(AtmManager atmManager) {
+        this.atmManager = atmManager;
+    }
+
+    /**
+     * Volumes des dépôts, retraits et virements, nombre de transactions par type
+     * et argent détenu, lus en temps constant sans parcourir l'historique
+     *
+     * GET /api/atm/aggregates
+     */
+    @GetMapping("/aggregates")
+    public ResponseEntity<Map<String, Object>> getAggregates() {
+        BankAggregates aggregates = atmManager.getAggregates();
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("totalDeposits", Money.toAmount(aggregates.depositTotal()));
+        response.put("totalWithdrawals", Money.toAmount(aggregates.withdrawalTotal()));
+        response.put("transferVolume", Money.toAmount(aggregates.transferVolume()));
+        response.put("countsByType", aggregates.countsByType());
+        response.put("totalMoney", Money.toAmount(aggregates.totalMoney()));
+        response.put("accountCount", aggregates.accountCount());
+        return ResponseEntity.ok(response);
+    }
+}
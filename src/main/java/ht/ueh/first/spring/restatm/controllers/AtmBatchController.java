@@ -0,0 +1,67 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.models.BatchItemResult;
+import ht.ueh.first.spring.restatm.models.BatchOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opérations par lots : dépôts, retraits et virements envoyés en une requête,
+ * appliqués en une passe et journalisés en un seul enregistrement
+ */
+@RestController
+@RequestMapping("/api/atm")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class AtmBatchController {
+
+    private final AtmManager atmManager;
+
+    public AtmBatchController(AtmManager atmManager) {
+        this.atmManager = atmManager;
+    }
+
+    /**
+     * @param atomic true pour un lot tout-ou-rien (absent = false)
+     */
+    public record BatchRequest(Boolean atomic, List<BatchOperation> operations) {
+    }
+
+    /**
+     * Applique un lot et retourne le résultat de chaque opération.
+     * Un lot tout-ou-rien qui échoue répond 400, avec le détail des résultats.
+     *
+     * POST /api/atm/batch
+     * {"atomic": true, "operations": [{"type": "VIREMENT", "accountNumber": "123456", "toAccount": "789012", "amount": 50.0}]}
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<Map<String, Object>> applyBatch(@RequestBody BatchRequest request) {
+        boolean atomic = Boolean.TRUE.equals(request.atomic());
+        Map<String, Object> response = new LinkedHashMap<>();
+        List<BatchItemResult> results;
+        try {
+            results = atmManager.applyBatch(request.operations(), atomic);
+        } catch (IllegalArgumentException e) {
+            response.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+
+        long applied = results.stream().filter(r -> r.status() == BatchItemResult.Status.OK).count();
+        response.put("atomic", atomic);
+        response.put("applied", applied);
+        response.put("failed", results.size() - applied);
+        response.put("results", results);
+        if (atomic && applied < results.size()) {
+            return ResponseEntity.badRequest().body(response);
+        }
+        return ResponseEntity.ok(response);
+    }
+}
@@ -0,0 +1,104 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AccountFeed;
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.models.Transaction;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Activité d'un compte en direct (Server-Sent Events), à la place d'interroger
+ * l'historique en boucle : seules les nouvelles transactions sont envoyées.
+ *
+ * Chaque abonné est servi par son propre thread virtuel ; un client lent ne
+ * ralentit que lui-même, jamais les opérations sur le compte.
+ */
+@RestController
+@RequestMapping("/api/atm")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class AtmEventsController {
+
+    /**
+     * Commentaire envoyé sans activité pendant ce délai : détecte les clients partis
+     */
+    private static final Duration HEARTBEAT = Duration.ofSeconds(15);
+
+    private final AtmManager atmManager;
+
+    public AtmEventsController(AtmManager atmManager) {
+        this.atmManager = atmManager;
+    }
+
+    /**
+     * Flux des transactions du compte : un événement {@code transaction} (id = id de la transaction)
+     * suivi d'un événement {@code balance} avec le nouveau solde.
+     * Sans paramètre, seules les transactions à venir sont envoyées ; {@code afterId}, ou l'en-tête
+     * Last-Event-ID envoyé par le navigateur à la reconnexion, reprend après cette transaction.
+     *
+     * GET /api/atm/accounts/123456/events?afterId=42
+     */
+    @GetMapping(value = "/accounts/{accountNumber}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> getEvents(
+            @PathVariable String accountNumber,
+            @RequestParam(required = false) Long afterId,
+            @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+
+        long from = lastEventId != null ? lastEventId : afterId != null ? Math.max(0, afterId) : -1;
+        AccountFeed feed;
+        try {
+            feed = atmManager.subscribe(accountNumber, from);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+
+        // Pas de délai : le flux dure tant que le client reste connecté
+        SseEmitter emitter = new SseEmitter(0L);
+        emitter.onCompletion(feed::close);
+        emitter.onTimeout(feed::close);
+        emitter.onError(e -> feed.close());
+        Thread.ofVirtual().name("sse-" + accountNumber).start(() -> stream(feed, emitter));
+        return ResponseEntity.ok(emitter);
+    }
+
+    private static void stream(AccountFeed feed, SseEmitter emitter) {
+        try (feed) {
+            while (!feed.isClosed()) {
+                List<Transaction> page = feed.poll(HEARTBEAT);
+                if (feed.isClosed()) {
+                    break;
+                }
+                if (page.isEmpty()) {
+                    emitter.send(SseEmitter.event().comment("keep-alive"));
+                    continue;
+                }
+                for (Transaction transaction : page) {
+                    Map<String, Object> balance = new LinkedHashMap<>();
+                    balance.put("accountNumber", transaction.getAccountNumber());
+                    balance.put("balance", transaction.getBalanceAfter());
+                    emitter.send(SseEmitter.event()
+                            .id(transaction.getId())
+                            .name("transaction")
+                            .data(transaction, MediaType.APPLICATION_JSON));
+                    emitter.send(SseEmitter.event()
+                            .name("balance")
+                            .data(balance, MediaType.APPLICATION_JSON));
+                }
+            }
+            emitter.complete();
+        } catch (IOException | IllegalStateException e) {
+            // Client déconnecté : l'abonnement est fermé, rien d'autre à faire
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            emitter.complete();
+        }
+    }
+}
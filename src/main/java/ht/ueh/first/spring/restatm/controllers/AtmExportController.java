@@ -0,0 +1,74 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+
+/**
+ * Export de l'historique des transactions en NDJSON (un objet JSON par ligne)
+ *
+ * Le flux est écrit directement sur la sortie de la réponse : la mémoire reste
+ * constante quelle que soit la taille de l'historique et le premier octet part
+ * dès la première transaction lue.
+ * Réservé au mode servlet : StreamingResponseBody n'existe pas en WebFlux.
+ */
+@RestController
+@RequestMapping("/api/atm")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class AtmExportController {
+
+    /**
+     * Nombre de transactions écrites entre deux flush
+     */
+    private static final int FLUSH_EVERY = 1000;
+
+    private final AtmManager atmManager;
+    private final ObjectMapper objectMapper;
+
+    public AtmExportController(AtmManager atmManager, ObjectMapper objectMapper) {
+        this.atmManager = atmManager;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Exporte les transactions, filtrées par compte et par intervalle [from, to[
+     *
+     * GET /api/atm/transactions/export?accountNumber=123456&from=2025-01-01T00:00:00&to=2025-02-01T00:00:00
+     */
+    @GetMapping(value = "/transactions/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportTransactions(
+            @RequestParam(required = false) String accountNumber,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+
+        StreamingResponseBody body = out -> {
+            int[] written = {0};
+            try {
+                atmManager.forEachTransaction(accountNumber, from, to, transaction -> {
+                    try {
+                        out.write(objectMapper.writeValueAsBytes(transaction));
+                        out.write('\n');
+                        if (++written[0] % FLUSH_EVERY == 0) {
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+}
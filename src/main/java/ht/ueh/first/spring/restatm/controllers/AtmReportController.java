@@ -0,0 +1,42 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.models.BankSnapshot;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rapports sur l'ensemble des comptes, lus dans un instantané cohérent
+ */
+@RestController
+@RequestMapping("/api/atm")
+public class AtmReportController {
+
+    private final AtmManager atmManager;
+
+    public AtmReportController(AtmManager atmManager) {
+        this.atmManager = atmManager;
+    }
+
+    /**
+     * Tous les comptes à une même séquence du registre, avec leur total :
+     * contrairement à {@code /aggregates}, le total est exactement la somme des soldes listés
+     *
+     * GET /api/atm/reports/accounts
+     */
+    @GetMapping("/reports/accounts")
+    public ResponseEntity<Map<String, Object>> getAccountsReport() {
+        BankSnapshot snapshot = atmManager.getSnapshot();
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("sequence", snapshot.sequence());
+        response.put("accountCount", snapshot.accounts().size());
+        response.put("totalMoney", snapshot.totalMoney());
+        response.put("accounts", snapshot.accounts());
+        return ResponseEntity.ok(response);
+    }
+}
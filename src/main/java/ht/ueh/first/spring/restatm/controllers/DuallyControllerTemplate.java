@@ -3,6 +3,7 @@ package ht.ueh.first.spring.restatm.controllers;
 import ht.ueh.first.spring.restatm.manager.AtmManager;
 import ht.ueh.first.spring.restatm.models.Account;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -33,12 +34,15 @@ public class DuallyControllerTemplate {
         return ResponseEntity.ok(atmManager.getAllAccounts());
     }
 
+    // ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
     @GetMapping("/accounts/{accountNumber}")
-    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber) {
-        if (accountNumber == null) {
+    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(atmManager.getAccount(accountNumber));
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> atmManager.getAccount(accountNumber));
     }
 
     @PostMapping("/accounts")
@@ -52,19 +56,27 @@ public class DuallyControllerTemplate {
         }
     }
 
-    // Endpoint 4 : Consulte le solde d'un compte
+    // Endpoint 4 : Consulte le solde d'un compte (ETag = version du compte, 304 si inchangé)
 
     @GetMapping("/accounts/{accountNumber}/balance")
-    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber) {
-        Account account = atmManager.getAccount(accountNumber);
-        if (account == null) {
+    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
             return ResponseEntity.notFound().build();
         }
 
-        Map<String, Object> response = new HashMap<>();
-        response.put("accountNumber", accountNumber);
-        response.put("balance", account.getBalance());
-        return ResponseEntity.ok(response);
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> {
+            Account account = atmManager.getAccount(accountNumber);
+            if (account == null) {
+                return null;
+            }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("accountNumber", accountNumber);
+            response.put("balance", account.getBalance());
+            return response;
+        });
     }
 
 
@@ -89,17 +101,25 @@ public class DuallyControllerTemplate {
     }
 
     //Endpoint 6 : Effectue un dépôt sur un compte
+    // Idempotency-Key : une requête rejouée reçoit le résultat d'origine ; If-Match : 412 si le compte a changé
 
     @PostMapping("/accounts/{accountNumber}/deposit")
-    public ResponseEntity<Account> deposit(@PathVariable String accountNumber, @RequestBody Map<String, Double> request) {
+    public ResponseEntity<Account> deposit(@PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Double> request) {
         try {
             double amount = request.get("amount");
-            Account account = atmManager.deposit(accountNumber, amount);
+            Account account = atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             if (account == null) {
                 return ResponseEntity.notFound().build();
             }
             return ResponseEntity.ok(account);
         }
+        catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+        }
         catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
         }
@@ -107,54 +127,84 @@ public class DuallyControllerTemplate {
 
 
     //Endpoint 7 : Effectue un retrait sur un compte
+    // Idempotency-Key : une requête rejouée reçoit le résultat d'origine ; If-Match : 412 si le compte a changé
 
     @PostMapping("/accounts/{accountNumber}/withdraw")
     public ResponseEntity<Account> withdraw(@PathVariable
             String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
         try {
             double amount = request.get("amount");
-            Account account = atmManager.withdraw(accountNumber, amount);
+            Account account = atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             if (account == null) {
                 return ResponseEntity.notFound().build();
             }
             return ResponseEntity.ok(account);
         }
+        catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+        }
         catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
         }
     }
 
     // Endpoint 8 : Effectue un virement entre deux comptes
+    // Idempotency-Key : une requête rejouée reçoit le résultat d'origine ; If-Match : 412 si le compte source a changé
     @PostMapping("/transfer")
-    public ResponseEntity<Map<String, String>> transfer(@RequestBody Map<String, Object> request) {
+    public ResponseEntity<Map<String, String>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Object> request) {
         try {
             String From = (String) request.get("from");
             String To = (String) request.get("to");
             double amount = ((Number) request.get("amount")).doubleValue();
 
-            atmManager.transfer(From, To, amount);
+            atmManager.transfer(From, To, amount, ETags.expectedVersion(ifMatch), idempotencyKey);
             return ResponseEntity.ok(Map.of("message", "Transfer successful"));
         }
+        catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(Map.of("error", e.getMessage()));
+        }
         catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         }
         }
 
-    // Endpoint 9 : Récupère l'historique des transactions d'un compte
+    // Endpoint 9 : Récupère l'historique des transactions d'un compte, par pages (curseur dans X-Next-After-Id)
+    // ETag = id de la dernière transaction du compte, 304 si inchangé
 
     @GetMapping("/accounts/{accountNumber}/transactions")
-    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber) {
-        List<Transaction> transactions = atmManager.getTransactions(accountNumber);
-        return ResponseEntity.ok(transactions);
+    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber,
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+        String etag = ETags.transactions(atmManager.getLastTransactionId(accountNumber));
+        if (ETags.matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        List<Transaction> transactions = atmManager.getTransactions(accountNumber, afterId, limit);
+        return TransactionPages.ok(transactions, etag);
     }
 
-    // Endpoint 10 : Récupère toutes les transactions
+    // Endpoint 10 : Récupère toutes les transactions, par pages (curseur dans X-Next-After-Id)
 
     @GetMapping("/transactions")
-    public ResponseEntity<List<Transaction>> getAllTransactions() {
-        List<Transaction> transactions = atmManager.getAllTransactions();
-        return ResponseEntity.ok(transactions);
+    public ResponseEntity<List<Transaction>> getAllTransactions(
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+        List<Transaction> transactions = atmManager.getAllTransactions(afterId, limit);
+        return TransactionPages.ok(transactions, null);
     }
 
     // ============================================
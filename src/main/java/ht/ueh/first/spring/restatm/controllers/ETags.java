@@ -0,0 +1,96 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.function.Supplier;
+
+/**
+ * ETag forts des comptes et de leur historique. Les versions repartent de zéro à
+ * chaque démarrage : la génération, propre au démarrage, évite qu'un ancien ETag
+ * ne désigne un autre état.
+ */
+final class ETags {
+
+    private static final String GENERATION = Long.toString(System.currentTimeMillis(), 36);
+
+    // Version qu'aucun compte n'atteint : une condition qui ne peut pas être satisfaite
+    private static final long NO_VERSION = Long.MAX_VALUE;
+
+    private ETags() {
+    }
+
+    /**
+     * ETag d'un compte et de son solde, pour une version ({@code AtmManager.getVersion})
+     */
+    static String account(long version) {
+        return "\"" + GENERATION + "-" + version + "\"";
+    }
+
+    /**
+     * ETag de l'historique d'un compte, pour l'id de sa dernière transaction
+     */
+    static String transactions(long lastTransactionId) {
+        return "\"" + GENERATION + "-t" + lastTransactionId + "\"";
+    }
+
+    /**
+     * L'en-tête If-None-Match désigne-t-il cet ETag ? Comparaison faible, {@code *} compris
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Réponse à une lecture conditionnelle : 304 sans corps si If-None-Match désigne l'ETag ;
+     * sinon le corps, produit seulement alors, avec l'ETag (404 si le corps est null)
+     */
+    static <T> ResponseEntity<T> conditional(String ifNoneMatch, String etag, Supplier<T> body) {
+        if (matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+        T value = body.get();
+        if (value == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().eTag(etag).body(value);
+    }
+
+    /**
+     * Version attendue d'après l'en-tête If-Match, pour une opération conditionnelle :
+     * {@code AtmManager.ANY_VERSION} sans en-tête ou avec {@code *}.
+     * Comparaison forte, un seul ETag : un ETag faible, d'un autre démarrage ou une liste
+     * ne désignent aucune version, et l'opération est refusée (412)
+     */
+    static long expectedVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return AtmManager.ANY_VERSION;
+        }
+        String prefix = "\"" + GENERATION + "-";
+        String tag = ifMatch.trim();
+        if (tag.startsWith(prefix) && tag.endsWith("\"") && tag.length() > prefix.length() + 1) {
+            try {
+                long version = Long.parseLong(tag.substring(prefix.length(), tag.length() - 1));
+                if (version >= 0) {
+                    return version;
+                }
+            } catch (NumberFormatException e) {
+                // ETag d'historique ou illisible : ne désigne aucune version
+            }
+        }
+        return NO_VERSION;
+    }
+}
@@ -3,6 +3,7 @@ package ht.ueh.first.spring.restatm.controllers;
 import ht.ueh.first.spring.restatm.manager.AtmManager;
 import ht.ueh.first.spring.restatm.models.Account;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.Errors;
@@ -64,16 +65,18 @@ public class ElendieAtmController {
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}")
      * TODO : Ajouter @PathVariable pour extraire accountNumber
      * TODO : Retourner 404 si le compte n'existe pas
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}")
 
-    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber) {
+    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         // TODO : Implémenter cette méthode
-        Account account = atmManager.getAccount(accountNumber);
-        if (account == null) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(account);
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> atmManager.getAccount(accountNumber));
     }
 
     /**
@@ -104,17 +107,29 @@ public class ElendieAtmController {
      *
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}/balance")
      * TODO : Retourner un Map avec accountNumber et balance
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}/balance")
-    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber) {
+    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         // TODO : Implémenter cette méthode
-        double balance = atmManager.getBalance(accountNumber);
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
+            return ResponseEntity.notFound().build();
+        }
 
-        Map<String, Object> response = new HashMap<>();
-        response.put("accountNumber", accountNumber);
-        response.put("balance", balance);
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> {
+            Account account = atmManager.getAccount(accountNumber);
+            if (account == null) {
+                return null;
+            }
 
-        return ResponseEntity.ok(response);
+            Map<String, Object> response = new HashMap<>();
+            response.put("accountNumber", accountNumber);
+            response.put("balance", account.getBalance());
+
+            return response;
+        });
 
     }
 
@@ -143,10 +158,14 @@ public class ElendieAtmController {
      * TODO : Recevoir le montant dans le body (Map<String, Double>)
      * TODO : Extraire "amount" de la Map
      * TODO : Gérer les erreurs (compte inexistant, montant invalide)
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis
      */
     @PostMapping("/accounts/{accountNumber}/deposit")
     public ResponseEntity<Map<String, Object>> deposit(
             @PathVariable    String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
            @RequestBody Map<String, Double> requestBody) {
         // TODO : Implémenter cette méthode
         if (!requestBody.containsKey("amount")) {
@@ -157,7 +176,8 @@ public class ElendieAtmController {
 
         try {
 
-            Account updatedAccount = atmManager.deposit(accountNumber, amount);
+            Account updatedAccount = atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
 
 
             Map<String, Object> response = new HashMap<>();
@@ -167,6 +187,8 @@ public class ElendieAtmController {
 
             return ResponseEntity.ok(response);
 
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(Map.of("error", e.getMessage()));
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         }
@@ -180,18 +202,26 @@ public class ElendieAtmController {
      * TODO : Ajouter @PostMapping("/accounts/{accountNumber}/withdraw")
      * TODO : Similaire au dépôt, mais avec withdraw()
      * TODO : Gérer le cas de solde insuffisant
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis, sans débit
      */
     @PostMapping("/accounts/{accountNumber}/withdraw")
     public ResponseEntity<Account> withdraw(
             // TODO : Implémenter cette méthode
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> requestBody) {
         try {
 
             Double amount = requestBody.get("amount");
-            Account updatedAccount = atmManager.withdraw(accountNumber, amount);
+            Account updatedAccount = atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
 
             return ResponseEntity.ok(updatedAccount);
+        } catch (VersionConflictException e) {
+
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         } catch (IllegalArgumentException e) {
 
             return ResponseEntity.badRequest().build();
@@ -206,9 +236,14 @@ public class ElendieAtmController {
      * TODO : Recevoir from, to, amount dans le body (Map<String, Object>)
      * TODO : Convertir amount en double : ((Number) request.get("amount")).doubleValue()
      * TODO : Retourner un message de succès ou d'erreur
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte source) : 412 si ce compte a changé depuis
      */
     @PostMapping("/transfer")
-    public ResponseEntity<Map<String, String>> transfer(@RequestBody Map<String, Object> request) {
+    public ResponseEntity<Map<String, String>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Object> request) {
         // TODO : Implémenter cette méthode
         try {
             // Récupérer les paramètres depuis le body JSON
@@ -217,7 +252,7 @@ public class ElendieAtmController {
             double amount = ((Number) request.get("amount")).doubleValue();
 
             // Appeler la logique métier
-            atmManager.transfer(from, to, amount);
+            atmManager.transfer(from, to, amount, ETags.expectedVersion(ifMatch), idempotencyKey);
 
             // Retourner un message de succès
             return ResponseEntity.ok(Map.of(
@@ -226,6 +261,11 @@ public class ElendieAtmController {
                     "to", to,
                     "amount", String.valueOf(amount) // conversion en String
             ));
+        } catch (VersionConflictException e) {
+            // Le compte source a changé depuis sa lecture
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(Map.of(
+                    "error", e.getMessage()
+            ));
         } catch (IllegalArgumentException e) {
             // Retourner un message d'erreur clair
             return ResponseEntity.badRequest().body(Map.of(
@@ -239,15 +279,24 @@ public class ElendieAtmController {
      *
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}/transactions")
      * TODO : Retourner la liste des transactions
+     * Par pages : afterId de la page suivante dans X-Next-After-Id.
+     * ETag = id de la dernière transaction du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}/transactions")
-    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber) {
+    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber,
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         // TODO : Implémenter cette méthode
         try {
 
-            List<Transaction> transactions = atmManager.getTransactions(accountNumber);
+            String etag = ETags.transactions(atmManager.getLastTransactionId(accountNumber));
+            if (ETags.matches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+            List<Transaction> transactions = atmManager.getTransactions(accountNumber, afterId, limit);
 
-            return ResponseEntity.ok(transactions);
+            return TransactionPages.ok(transactions, etag);
         } catch (IllegalArgumentException e) {
 
             return ResponseEntity.badRequest().build();
@@ -260,15 +309,21 @@ public class ElendieAtmController {
      *
      * TODO : Ajouter @GetMapping("/transactions")
      * TODO : Retourner toutes les transactions du système
+     * Par pages : afterId de la page suivante dans X-Next-After-Id
      */
     @GetMapping("/transactions")
-    public ResponseEntity<List<Transaction>> getAllTransactions() {
+    public ResponseEntity<List<Transaction>> getAllTransactions(
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
         // TODO : Implémenter cette méthode
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
         try {
 
-            List<Transaction> transactions = atmManager.getAllTransactions();
+            List<Transaction> transactions = atmManager.getAllTransactions(afterId, limit);
 
-            return ResponseEntity.ok(transactions);
+            return TransactionPages.ok(transactions, null);
         } catch (Exception e) {
 
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
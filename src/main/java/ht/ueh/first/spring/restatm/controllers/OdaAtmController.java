@@ -3,6 +3,8 @@ package ht.ueh.first.spring.restatm.controllers;
 import ht.ueh.first.spring.restatm.manager.AtmManager;
 import ht.ueh.first.spring.restatm.models.Account;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -66,16 +68,18 @@ public class OdaAtmController {
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}")
      * TODO : Ajouter @PathVariable pour extraire accountNumber
      * TODO : Retourner 404 si le compte n'existe pas
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}")
     public ResponseEntity<Account> getAccount(
-            @PathVariable String accountNumber) {
-        Account account = atmManager.getAccount(accountNumber);
-        if (account == null) {
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
             return ResponseEntity.notFound().build(); // 404
         }
 
-        return ResponseEntity.ok(account); // 200
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> atmManager.getAccount(accountNumber));
     }
 
     /**
@@ -105,18 +109,26 @@ public class OdaAtmController {
      * TODO : Retourner un Map avec accountNumber et balance
      */
     @GetMapping("/accounts/{accountNumber}/balance")
-    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber) {
-        try {
-            double balance = atmManager.getBalance(accountNumber);
+    public ResponseEntity<Map<String, Object>> getBalance(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
+            return ResponseEntity.notFound().build(); // 404 si kont pa egziste
+        }
+
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> {
+            Account account = atmManager.getAccount(accountNumber);
+            if (account == null) {
+                return null;
+            }
 
             Map<String, Object> response = new HashMap<>();
             response.put("accountNumber", accountNumber);
-            response.put("balance", balance);
+            response.put("balance", account.getBalance());
 
-            return ResponseEntity.ok(response); // retounen Map la kòm JSON
-        } catch (IllegalArgumentException e) {
-            return ResponseEntity.notFound().build(); // 404 si kont pa egziste
-        }
+            return response; // retounen Map la kòm JSON
+        });
     }
 
 
@@ -157,11 +169,15 @@ public class OdaAtmController {
      * TODO : Recevoir le montant dans le body (Map<String, Double>)
      * TODO : Extraire "amount" de la Map
      * TODO : Gérer les erreurs (compte inexistant, montant invalide)
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis
      */
 
     @PostMapping("/accounts/{accountNumber}/deposit")
     public ResponseEntity<Account> deposit(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
 
         if (!request.containsKey("amount")) {
@@ -171,8 +187,11 @@ public class OdaAtmController {
         double amount = request.get("amount");
 
         try {
-            Account updatedAccount = atmManager.deposit(accountNumber, amount);
+            Account updatedAccount = atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             return ResponseEntity.ok(updatedAccount); // 200 OK
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build(); // 412 si kont lan chanje
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build(); // 400 si erè (eg. kont pa egziste, montant negatif)
         }
@@ -184,10 +203,14 @@ public class OdaAtmController {
      * TODO : Ajouter @PostMapping("/accounts/{accountNumber}/withdraw")
      * TODO : Similaire au dépôt, mais avec withdraw()
      * TODO : Gérer le cas de solde insuffisant
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis, sans débit
      */
     @PostMapping("/accounts/{accountNumber}/withdraw")
     public ResponseEntity<Account> withdraw(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
 
         if (request == null || !request.containsKey("amount")) {
@@ -196,10 +219,15 @@ public class OdaAtmController {
 
         double amount = request.get("amount");
 
-        // Si kont pa egziste oswa balans < amount, AtmManager ap lanse IllegalArgumentException
-        Account updatedAccount = atmManager.withdraw(accountNumber, amount);
-
-        return ResponseEntity.ok(updatedAccount); // 200 OK si tout mache
+        try {
+            Account updatedAccount = atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
+            return ResponseEntity.ok(updatedAccount); // 200 OK si tout mache
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build(); // 412 si kont lan chanje
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build(); // 400 si kont pa egziste oswa balans < amount
+        }
     }
 
     /**
@@ -209,9 +237,13 @@ public class OdaAtmController {
      * TODO : Recevoir from, to, amount dans le body (Map<String, Object>)
      * TODO : Convertir amount en double : ((Number) request.get("amount")).doubleValue()
      * TODO : Retourner un message de succès ou d'erreur
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte source) : 412 si ce compte a changé depuis
      */
     @PostMapping("/transfer")
     public ResponseEntity<Map<String, String>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Object> request) {
 
         Map<String, String> response = new HashMap<>();
@@ -221,11 +253,14 @@ public class OdaAtmController {
             String to = (String) request.get("to");
             double amount = ((Number) request.get("amount")).doubleValue();
 
-            atmManager.transfer(from, to, amount);
+            atmManager.transfer(from, to, amount, ETags.expectedVersion(ifMatch), idempotencyKey);
 
             response.put("message", "Transfer successful");
             return ResponseEntity.ok(response); // 200 OK
 
+        } catch (VersionConflictException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(response); // 412
         } catch (Exception e) {
             response.put("error", e.getMessage());
             return ResponseEntity.badRequest().body(response); // 400
@@ -238,15 +273,28 @@ public class OdaAtmController {
      * <p>
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}/transactions")
      * TODO : Retourner la liste des transactions
+     * Par pages : afterId de la page suivante dans X-Next-After-Id.
+     * ETag = id de la dernière transaction du compte ; avec If-None-Match inchangé, 304 sans corps
      */
 
     @GetMapping("/accounts/{accountNumber}/transactions")
     public ResponseEntity<List<Transaction>> getTransactions(
-            @PathVariable String accountNumber) {
+            @PathVariable String accountNumber,
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build(); // 400 si limit pa bon
+        }
+        String etag = ETags.transactions(atmManager.getLastTransactionId(accountNumber));
+        if (ETags.matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build(); // 304
+        }
 
-        List<Transaction> transactions = atmManager.getTransactions(accountNumber);
+        List<Transaction> transactions = atmManager.getTransactions(accountNumber, afterId, limit);
 
-        return ResponseEntity.ok(transactions); // 200 OK
+        return TransactionPages.ok(transactions, etag); // 200 OK
     }
 
     /**
@@ -254,12 +302,18 @@ public class OdaAtmController {
      * <p>
      * TODO : Ajouter @GetMapping("/transactions")
      * TODO : Retourner toutes les transactions du système
+     * Par pages : afterId de la page suivante dans X-Next-After-Id
      */
     @GetMapping("/transactions")
-    public ResponseEntity<List<Transaction>> getAllTransactions() {
-        List<Transaction> allTransactions = atmManager.getAllTransactions();
+    public ResponseEntity<List<Transaction>> getAllTransactions(
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build(); // 400 si limit pa bon
+        }
+        List<Transaction> allTransactions = atmManager.getAllTransactions(afterId, limit);
         // TODO : Implémenter cette méthode
-        return ResponseEntity.ok(allTransactions);
+        return TransactionPages.ok(allTransactions, null);
     }
 
     // ============================================
@@ -291,11 +345,13 @@ public class OdaAtmController {
      * @PutMapping("/accounts/{accountNumber}/pin") - Modifie le PIN d'un compte
      * - Body : { "oldPin": "1234", "newPin": "5678" }
      * - Vérifier l'ancien PIN avant de changer
+     * - If-Match (ETag du compte) : 412 si le compte a changé depuis
      */
 
     @PutMapping("/accounts/{accountNumber}/pin")
     public ResponseEntity<Map<String, String>> updatePin(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, String> request) {
 
         Map<String, String> response = new HashMap<>();
@@ -314,8 +370,16 @@ public class OdaAtmController {
             return ResponseEntity.status(403).body(response); // 403 Forbidden
         }
 
-        // Chanje PIN nan kont lan
-        atmManager.updatePin(accountNumber, newPin); // Fè metòd sa nan AtmManager
+        // Chanje PIN nan kont lan, si kont lan pa chanje depi If-Match
+        try {
+            atmManager.updatePin(accountNumber, newPin, ETags.expectedVersion(ifMatch));
+        } catch (VersionConflictException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(response); // 412
+        } catch (IllegalArgumentException e) {
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(404).body(response); // 404 si kont pa egziste
+        }
 
         response.put("message", "PIN updated successfully");
         return ResponseEntity.ok(response); // 200 OK
@@ -3,6 +3,7 @@ package ht.ueh.first.spring.restatm.controllers;
 import ht.ueh.first.spring.restatm.manager.AtmManager;
 import ht.ueh.first.spring.restatm.models.Account;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -49,15 +50,18 @@ public class PcharlesAtmController {
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}")
      * TODO : Ajouter @PathVariable pour extraire accountNumber
      * TODO : Retourner 404 si le compte n'existe pas
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}")
-    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber) {
-        // TODO : Implémenter cette méthode
-        Account account = atmManager.getAccount(accountNumber);
-        if(account == null) {
+    public ResponseEntity<Account> getAccount(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        // Version lue avant le compte : la réponse n'est jamais plus ancienne que son ETag
+        long version = atmManager.getVersion(accountNumber);
+        if(version < 0) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(account);
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> atmManager.getAccount(accountNumber));
     }
 
     /**
@@ -90,27 +94,36 @@ public class PcharlesAtmController {
      * TODO : Retourner un Map avec accountNumber et balance
      */
     @GetMapping("/accounts/{accountNumber}/balance")
-    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber) {
+    public ResponseEntity<Map<String, Object>> getBalance(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         // TODO : Implémenter cette méthode
         try {
-            // Appelle le manager pour récupérer le solde du compte spécifié
-            double balance = atmManager.getBalance(accountNumber);
+            // Version du compte : sert d'ETag ; négative si le compte n'existe pas
+            long version = atmManager.getVersion(accountNumber);
+            if (version < 0) {
+                // Si le compte n'existe pas, on renvoie un code HTTP 404 Not Found
+                return ResponseEntity.notFound().build();
+            }
 
-            // Crée une Map pour construire la réponse JSON
-            Map<String, Object> response = new HashMap<>();
+            // 304 sans corps si le client a déjà cette version, sinon 200 OK avec l'ETag
+            return ETags.conditional(ifNoneMatch, ETags.account(version), () -> {
+                Account account = atmManager.getAccount(accountNumber);
+                if (account == null) {
+                    return null;
+                }
 
-            // Ajoute le numéro de compte dans la réponse
-            response.put("accountNumber", accountNumber);
+                // Crée une Map pour construire la réponse JSON
+                Map<String, Object> response = new HashMap<>();
 
-            // Ajoute le solde du compte dans la réponse
-            response.put("balance", balance);
+                // Ajoute le numéro de compte dans la réponse
+                response.put("accountNumber", accountNumber);
 
-            // Retourne la Map en JSON avec un code HTTP 200 OK
-            return ResponseEntity.ok(response);
+                // Ajoute le solde du compte dans la réponse
+                response.put("balance", account.getBalance());
 
-        } catch (IllegalArgumentException e) {
-            // Si le compte n'existe pas, on renvoie un code HTTP 404 Not Found
-            return ResponseEntity.notFound().build();
+                return response;
+            });
 
         } catch (Exception e) {
             // Pour toute autre erreur inattendue, on log l'erreur pour débogage
@@ -151,10 +164,14 @@ public class PcharlesAtmController {
      * TODO : Recevoir le montant dans le body (Map<String, Double>)
      * TODO : Extraire "amount" de la Map
      * TODO : Gérer les erreurs (compte inexistant, montant invalide)
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis
      */
     @PostMapping("/accounts/{accountNumber}/deposit")
     public ResponseEntity<Account> deposit(
            @PathVariable String accountNumber,
+           @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+           @RequestHeader(value = "If-Match", required = false) String ifMatch,
            @RequestBody Map<String, Double> request) {
 
         try {
@@ -162,10 +179,17 @@ public class PcharlesAtmController {
             double amount = request.get("amount");
             // 2. Effectuer le dépôt via le manager
             //    Met à jour le solde du compte et enregistre la transaction
-            Account account = atmManager.deposit(accountNumber, amount);
+            Account account = atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             // 3. Retourner le compte mis à jour avec HTTP 200 OK
             return ResponseEntity.ok(account);
 
+        } catch (VersionConflictException e) {
+
+            // Le compte a changé depuis sa lecture : HTTP 412 Precondition Failed
+
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+
         } catch (IllegalArgumentException e) {
 
             // 4. Cas d'erreur client :
@@ -191,22 +215,31 @@ public class PcharlesAtmController {
      * TODO : Ajouter @PostMapping("/accounts/{accountNumber}/withdraw")
      * TODO : Similaire au dépôt, mais avec withdraw()
      * TODO : Gérer le cas de solde insuffisant
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis, sans débit
      */
     @PostMapping("/accounts/{accountNumber}/withdraw")
     public ResponseEntity<Account> withdraw(
            @PathVariable String accountNumber,
+           @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+           @RequestHeader(value = "If-Match", required = false) String ifMatch,
            @RequestBody Map<String, Double> request) {
         try {
             // Récupérer le montant à retirer depuis le body JSON
             double amount = request.get("amount");
 
             // Effectuer le retrait via le manager
-            // Vérifie le solde, met à jour le compte et enregistre la transaction
-            Account account = atmManager.withdraw(accountNumber, amount);
+            // Vérifie la version, le solde, met à jour le compte et enregistre la transaction
+            Account account = atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
 
             // Retourner le compte mis à jour avec HTTP 200 OK
             return ResponseEntity.ok(account);
 
+        } catch (VersionConflictException e) {
+            // Le compte a changé depuis sa lecture : HTTP 412 Precondition Failed
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+
         } catch (IllegalArgumentException e) {
             // Cas d'erreur client : compte inexistant, montant invalide ou solde insuffisant
             // Retourne HTTP 400 Bad Request
@@ -227,9 +260,14 @@ public class PcharlesAtmController {
      * TODO : Recevoir from, to, amount dans le body (Map<String, Object>)
      * TODO : Convertir amount en double : ((Number) request.get("amount")).doubleValue()
      * TODO : Retourner un message de succès ou d'erreur
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte source) : 412 si ce compte a changé depuis
      */
     @PostMapping("/transfer")
-    public ResponseEntity<Map<String, String>> transfer(@RequestBody Map<String, Object> request) {
+    public ResponseEntity<Map<String, String>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Object> request) {
 
         try {
             // Récupérer les informations du virement depuis le body JSON
@@ -240,7 +278,7 @@ public class PcharlesAtmController {
 
             // Effectuer le virement via le manager
             // Vérifie le solde, met à jour les deux comptes et enregistre les transactions
-            atmManager.transfer(from, to, amount);
+            atmManager.transfer(from, to, amount, ETags.expectedVersion(ifMatch), idempotencyKey);
 
             // Préparer la réponse JSON avec un message de succès
             Map<String, String> response = new HashMap<>();
@@ -249,6 +287,12 @@ public class PcharlesAtmController {
             // Retourner la réponse avec HTTP 200 OK
             return ResponseEntity.ok(response);
 
+        } catch (VersionConflictException e) {
+            // Le compte source a changé depuis sa lecture : HTTP 412 Precondition Failed
+            Map<String, String> response = new HashMap<>();
+            response.put("error", e.getMessage());
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(response);
+
         } catch (IllegalArgumentException e) {
             // Cas d'erreur client : compte inexistant ou solde insuffisant
             // Retourne HTTP 400 Bad Request avec le message d'erreur
@@ -269,15 +313,31 @@ public class PcharlesAtmController {
      *
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}/transactions")
      * TODO : Retourner la liste des transactions
+     * ETag = id de la dernière transaction du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}/transactions")
-    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber) {
+    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber,
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
 
-        // Récupérer toutes les transactions liées au compte via le manager
-        List<Transaction> transactions = atmManager.getTransactions(accountNumber);
+        // Taille de page entre 1 et AtmManager.MAX_PAGE_SIZE, sinon HTTP 400 Bad Request
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        // Historique inchangé depuis la dernière lecture du client : HTTP 304 sans corps
+        String etag = ETags.transactions(atmManager.getLastTransactionId(accountNumber));
+        if (ETags.matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
 
-        // Retourner la liste des transactions (vide si aucune transaction)
-        return ResponseEntity.ok(transactions);
+        // Récupérer une page des transactions liées au compte via le manager
+        List<Transaction> transactions = atmManager.getTransactions(accountNumber, afterId, limit);
+
+        // Retourner la liste des transactions (vide si aucune transaction),
+        // le curseur de la page suivante dans X-Next-After-Id
+        return TransactionPages.ok(transactions, etag);
     }
 
     /**
@@ -287,13 +347,20 @@ public class PcharlesAtmController {
      * TODO : Retourner toutes les transactions du système
      */
     @GetMapping("/transactions")
-    public ResponseEntity<List<Transaction>> getAllTransactions() {
+    public ResponseEntity<List<Transaction>> getAllTransactions(
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
+
+        // Taille de page entre 1 et AtmManager.MAX_PAGE_SIZE, sinon HTTP 400 Bad Request
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
 
-        // Récupérer toutes les transactions du système via le manager
-        List<Transaction> transactions = atmManager.getAllTransactions();
+        // Récupérer une page des transactions du système via le manager
+        List<Transaction> transactions = atmManager.getAllTransactions(afterId, limit);
 
-        // Retourner la liste complète des transactions
-        return ResponseEntity.ok(transactions);
+        // Retourner la page de transactions (le dernier id, dans X-Next-After-Id, sert de curseur afterId)
+        return TransactionPages.ok(transactions, null);
     }
 
     // ============================================
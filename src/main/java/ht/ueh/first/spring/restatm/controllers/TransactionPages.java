@@ -0,0 +1,38 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.AtmManager;
+import ht.ueh.first.spring.restatm.models.Transaction;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+
+/**
+ * Pages d'historique par curseur : {@code limit} entre 1 et {@link AtmManager#MAX_PAGE_SIZE},
+ * et le {@code afterId} de la page suivante dans l'en-tête {@value #NEXT_AFTER_ID}
+ */
+final class TransactionPages {
+
+    static final String NEXT_AFTER_ID = "X-Next-After-Id";
+
+    private TransactionPages() {
+    }
+
+    static boolean isValidLimit(int limit) {
+        return limit >= 1 && limit <= AtmManager.MAX_PAGE_SIZE;
+    }
+
+    /**
+     * Réponse 200 pour une page, avec l'ETag s'il y en a un ; sans en-tête de curseur
+     * quand la page est vide (rien après {@code afterId} pour l'instant)
+     */
+    static ResponseEntity<List<Transaction>> ok(List<Transaction> page, String etag) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (etag != null) {
+            response.eTag(etag);
+        }
+        if (!page.isEmpty()) {
+            response.header(NEXT_AFTER_ID, page.getLast().getId());
+        }
+        return response.body(page);
+    }
+}
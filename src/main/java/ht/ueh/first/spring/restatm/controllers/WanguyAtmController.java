@@ -3,6 +3,7 @@ package ht.ueh.first.spring.restatm.controllers;
 import ht.ueh.first.spring.restatm.manager.AtmManager;
 import ht.ueh.first.spring.restatm.models.Account;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -37,14 +38,18 @@ public class WanguyAtmController {
 
     /**
      * Endpoint 2 : Récupérer un compte par numéro
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}")
-    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber) {
-        Account account = atmManager.getAccount(accountNumber);
-        if (account == null) {
+    public ResponseEntity<Account> getAccount(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        // Version lue avant le compte : la réponse n'est jamais plus ancienne que son ETag
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(account);
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> atmManager.getAccount(accountNumber));
     }
 
     /**
@@ -64,17 +69,23 @@ public class WanguyAtmController {
      * Endpoint 4 : Consulter le solde
      */
     @GetMapping("/accounts/{accountNumber}/balance")
-    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber) {
-        Account account = atmManager.getAccount(accountNumber);
-        if (account == null) {
+    public ResponseEntity<Map<String, Object>> getBalance(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
             return ResponseEntity.notFound().build();
         }
-
-        Map<String, Object> response = new HashMap<>();
-        response.put("accountNumber", accountNumber);
-        response.put("balance", account.getBalance());
-
-        return ResponseEntity.ok(response);
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> {
+            Account account = atmManager.getAccount(accountNumber);
+            if (account == null) {
+                return null;
+            }
+            Map<String, Object> response = new HashMap<>();
+            response.put("accountNumber", accountNumber);
+            response.put("balance", account.getBalance());
+            return response;
+        });
     }
 
     /**
@@ -96,10 +107,14 @@ public class WanguyAtmController {
 
     /**
      * Endpoint 6 : Dépôt
+     * Avec l'en-tête Idempotency-Key, une requête rejouée reçoit le résultat d'origine.
+     * Avec l'en-tête If-Match (ETag du compte), 412 si le compte a changé depuis
      */
     @PostMapping("/accounts/{accountNumber}/deposit")
     public ResponseEntity<Account> deposit(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
 
         Double amount = request.get("amount");
@@ -108,8 +123,11 @@ public class WanguyAtmController {
         }
 
         try {
-            Account account = atmManager.deposit(accountNumber, amount);
+            Account account = atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             return ResponseEntity.ok(account);
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         } catch (Exception e) {
             return ResponseEntity.notFound().build();
         }
@@ -117,10 +135,15 @@ public class WanguyAtmController {
 
     /**
      * Endpoint 7 : Retrait
+     * Avec l'en-tête Idempotency-Key, une requête rejouée reçoit le résultat d'origine.
+     * Avec l'en-tête If-Match (ETag du compte), le retrait n'a lieu que si le compte
+     * n'a pas changé depuis : sinon 412, sans débit
      */
     @PostMapping("/accounts/{accountNumber}/withdraw")
     public ResponseEntity<Account> withdraw(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
 
         Double amount = request.get("amount");
@@ -129,8 +152,11 @@ public class WanguyAtmController {
         }
 
         try {
-            Account account = atmManager.withdraw(accountNumber, amount);
+            Account account = atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             return ResponseEntity.ok(account);
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         } catch (IllegalArgumentException e) {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
         } catch (Exception e) {
@@ -140,9 +166,13 @@ public class WanguyAtmController {
 
     /**
      * Endpoint 8 : Virement
+     * Avec l'en-tête Idempotency-Key, une requête rejouée reçoit le résultat d'origine.
+     * Avec l'en-tête If-Match (ETag du compte source), 412 si ce compte a changé depuis
      */
     @PostMapping("/transfer")
     public ResponseEntity<Map<String, String>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Object> request) {
 
         String from = (String) request.get("from");
@@ -152,9 +182,12 @@ public class WanguyAtmController {
         Map<String, String> response = new HashMap<>();
 
         try {
-            atmManager.transfer(from, to, amount);
+            atmManager.transfer(from, to, amount, ETags.expectedVersion(ifMatch), idempotencyKey);
             response.put("message", "Virement effectué avec succès");
             return ResponseEntity.ok(response);
+        } catch (VersionConflictException e) {
+            response.put("message", "Le compte a été modifié depuis sa lecture");
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(response);
         } catch (Exception e) {
             response.put("message", "Erreur lors du virement");
             return ResponseEntity.badRequest().body(response);
@@ -162,25 +195,69 @@ public class WanguyAtmController {
     }
 
     /**
-     * Endpoint 9 : Transactions d’un compte
+     * Endpoint 9 : Transactions d’un compte, par pages (curseur dans X-Next-After-Id)
+     * ETag = id de la dernière transaction du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}/transactions")
     public ResponseEntity<List<Transaction>> getTransactions(
-            @PathVariable String accountNumber) {
+            @PathVariable String accountNumber,
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
 
-        List<Transaction> transactions = atmManager.getTransactions(accountNumber);
-        if (transactions == null) {
-            return ResponseEntity.notFound().build();
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+        String etag = ETags.transactions(atmManager.getLastTransactionId(accountNumber));
+        if (ETags.matches(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
         }
-        return ResponseEntity.ok(transactions);
+        return TransactionPages.ok(atmManager.getTransactions(accountNumber, afterId, limit), etag);
     }
 
     /**
-     * Endpoint 10 : Toutes les transactions
+     * Endpoint 10 : Toutes les transactions, par pages (curseur dans X-Next-After-Id)
      */
     @GetMapping("/transactions")
-    public ResponseEntity<List<Transaction>> getAllTransactions() {
-        return ResponseEntity.ok(atmManager.getAllTransactions());
+    public ResponseEntity<List<Transaction>> getAllTransactions(
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+        return TransactionPages.ok(atmManager.getAllTransactions(afterId, limit), null);
+    }
+
+    /**
+     * Endpoint 11 : Modifier le PIN
+     * Body : { "oldPin": "1234", "newPin": "5678" } ; 403 si l'ancien PIN est faux.
+     * Avec l'en-tête If-Match (ETag du compte), 412 si le compte a changé depuis
+     */
+    @PutMapping("/accounts/{accountNumber}/pin")
+    public ResponseEntity<Map<String, String>> updatePin(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, String> request) {
+
+        String newPin = request.get("newPin");
+        if (newPin == null || newPin.isBlank()) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (atmManager.getVersion(accountNumber) < 0) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!atmManager.verifyPin(accountNumber, request.get("oldPin"))) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+
+        try {
+            atmManager.updatePin(accountNumber, newPin, ETags.expectedVersion(ifMatch));
+            return ResponseEntity.ok(Map.of("message", "PIN modifié"));
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
     }
 }
 
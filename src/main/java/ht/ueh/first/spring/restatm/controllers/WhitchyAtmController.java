@@ -2,7 +2,10 @@ package ht.ueh.first.spring.restatm.controllers;
 
 import ht.ueh.first.spring.restatm.manager.AtmManager;
 import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.Money;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -57,15 +60,17 @@ public class WhitchyAtmController {
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}")
      * TODO : Ajouter @PathVariable pour extraire accountNumber
      * TODO : Retourner 404 si le compte n'existe pas
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}")
-    public ResponseEntity<Account> getAccount(@PathVariable String accountNumber) {
-        for  (Account account : atmManager.getAllAccounts()) {
-            if (account.getAccountNumber().equals(accountNumber)) {
-                return ResponseEntity.ok(account);
-            }
+    public ResponseEntity<Account> getAccount(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
+            return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.notFound().build();
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> atmManager.getAccount(accountNumber));
     }
 
     /**
@@ -91,20 +96,26 @@ public class WhitchyAtmController {
      *
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}/balance")
      * TODO : Retourner un Map avec accountNumber et balance
+     * ETag = version du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}/balance")
-    public ResponseEntity<Map<String, Object>> getBalance(@PathVariable String accountNumber) {
-        for  (Account account : atmManager.getAllAccounts()) {
-            if (account.getAccountNumber().equals(accountNumber)) {
-                double balance = atmManager.getBalance(accountNumber);
-                Map<String, Object> result = Map.of(
-                        "accountNumber", accountNumber,
-                        "balance", balance
-                );
-                return ResponseEntity.ok(result);
-            }
+    public ResponseEntity<Map<String, Object>> getBalance(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        long version = atmManager.getVersion(accountNumber);
+        if (version < 0) {
+            return ResponseEntity.badRequest().build();
         }
-        return ResponseEntity.badRequest().build();
+        return ETags.conditional(ifNoneMatch, ETags.account(version), () -> {
+            Account account = atmManager.getAccount(accountNumber);
+            if (account == null) {
+                return null;
+            }
+            return Map.<String, Object>of(
+                    "accountNumber", accountNumber,
+                    "balance", account.getBalance()
+            );
+        });
     }
 
     /**
@@ -135,15 +146,22 @@ public class WhitchyAtmController {
      * TODO : Recevoir le montant dans le body (Map<String, Double>)
      * TODO : Extraire "amount" de la Map
      * TODO : Gérer les erreurs (compte inexistant, montant invalide)
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis
      */
     @PostMapping("/accounts/{accountNumber}/deposit")
     public ResponseEntity<Account> deposit(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
         try {
             double amount = request.get("amount");
-            Account updatedAccount = atmManager.deposit(accountNumber, amount);
+            Account updatedAccount = atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             return ResponseEntity.ok(updatedAccount);
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
@@ -155,15 +173,22 @@ public class WhitchyAtmController {
      * TODO : Ajouter @PostMapping("/accounts/{accountNumber}/withdraw")
      * TODO : Similaire au dépôt, mais avec withdraw()
      * TODO : Gérer le cas de solde insuffisant
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte) : 412 si le compte a changé depuis, sans débit
      */
     @PostMapping("/accounts/{accountNumber}/withdraw")
     public ResponseEntity<Account> withdraw(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, Double> request) {
         try {
             double amount = request.get("amount");
-            Account updatedAccount = atmManager.withdraw(accountNumber, amount);
+            Account updatedAccount = atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch),
+                    idempotencyKey);
             return ResponseEntity.ok(updatedAccount);
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
@@ -176,17 +201,24 @@ public class WhitchyAtmController {
      * TODO : Recevoir from, to, amount dans le body (Map<String, Object>)
      * TODO : Convertir amount en double : ((Number) request.get("amount")).doubleValue()
      * TODO : Retourner un message de succès ou d'erreur
+     * Idempotency-Key : une requête rejouée reçoit le résultat d'origine.
+     * If-Match (ETag du compte source) : 412 si ce compte a changé depuis
      */
     @PostMapping("/transfer")
-    public ResponseEntity<Map<String, String>> transfer(@RequestBody Map<String, Object> request) {
+    public ResponseEntity<Map<String, String>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Object> request) {
         try {
             String fromAccount = (String) request.get("from");
             String toAccount = (String) request.get("to");
             double amount = ((Number) request.get("amount")).doubleValue();
 
-            atmManager.transfer(fromAccount, toAccount, amount);
+            atmManager.transfer(fromAccount, toAccount, amount, ETags.expectedVersion(ifMatch), idempotencyKey);
             Map<String, String> result = Map.of("message", "Transfer successful");
             return ResponseEntity.ok(result);
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             Map<String, String> error = Map.of("error", e.getMessage());
             return ResponseEntity.badRequest().body(error);
@@ -198,12 +230,24 @@ public class WhitchyAtmController {
      *
      * TODO : Ajouter @GetMapping("/accounts/{accountNumber}/transactions")
      * TODO : Retourner la liste des transactions
+     * Par pages : afterId de la page suivante dans X-Next-After-Id.
+     * ETag = id de la dernière transaction du compte ; avec If-None-Match inchangé, 304 sans corps
      */
     @GetMapping("/accounts/{accountNumber}/transactions")
-    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber) {
+    public ResponseEntity<List<Transaction>> getTransactions(@PathVariable String accountNumber,
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
         try {
-            List<Transaction> transactions = atmManager.getTransactions(accountNumber);
-            return ResponseEntity.ok(transactions);
+            String etag = ETags.transactions(atmManager.getLastTransactionId(accountNumber));
+            if (ETags.matches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+            List<Transaction> transactions = atmManager.getTransactions(accountNumber, afterId, limit);
+            return TransactionPages.ok(transactions, etag);
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
@@ -214,11 +258,17 @@ public class WhitchyAtmController {
      *
      * TODO : Ajouter @GetMapping("/transactions")
      * TODO : Retourner toutes les transactions du système
+     * Par pages : afterId de la page suivante dans X-Next-After-Id
      */
     @GetMapping("/transactions")
-    public ResponseEntity<List<Transaction>> getAllTransactions() {
+    public ResponseEntity<List<Transaction>> getAllTransactions(
+            @RequestParam(defaultValue = "0") long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
+        if (!TransactionPages.isValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
         try {
-            return ResponseEntity.ok(atmManager.getAllTransactions());
+            return TransactionPages.ok(atmManager.getAllTransactions(afterId, limit), null);
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
@@ -253,23 +303,26 @@ public class WhitchyAtmController {
      * - Modifie le PIN d'un compte
      * - Body : { "oldPin": "1234", "newPin": "5678" }
      * - Vérifier l'ancien PIN avant de changer
+     * - If-Match (ETag du compte) : 412 si le compte a changé depuis
      */
     @PutMapping("/accounts/{accountNumber}/pin")
     public ResponseEntity<Map<String, String>> updatePin(
             @PathVariable String accountNumber,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
             @RequestBody Map<String, String> request) {
         try {
-            for (Account account : atmManager.getAllAccounts()){
-                if (account.getAccountNumber().equals(accountNumber)) {
-                    if (account.getPin().equals(request.get("oldPin"))) {
-                        account.setPin(request.get("newPin"));
-                        return ResponseEntity.ok().body(Map.of("message", "Account updated : pin modifié"));
-                    }else {
-                        return ResponseEntity.badRequest().build();
-                    }
-                }
+            if (atmManager.getVersion(accountNumber) < 0) {
+                return ResponseEntity.badRequest().build();
             }
-            return ResponseEntity.badRequest().build();
+            // Les comptes ne rendent pas leur PIN : vérification par le gestionnaire
+            if (atmManager.verifyPin(accountNumber, request.get("oldPin"))) {
+                atmManager.updatePin(accountNumber, request.get("newPin"), ETags.expectedVersion(ifMatch));
+                return ResponseEntity.ok().body(Map.of("message", "Account updated : pin modifié"));
+            }else {
+                return ResponseEntity.badRequest().build();
+            }
+        } catch (VersionConflictException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         }catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
@@ -311,29 +364,18 @@ public class WhitchyAtmController {
      */
     @GetMapping("/accounts/{accountNumber}/stats")
     public ResponseEntity<Map<String, Object>> getAccountStats(@PathVariable String accountNumber) {
-        List<Transaction> transactions = atmManager.getTransactions(accountNumber);
-        int numberOfTransactions = 0;
-        double totalDeposits = 0.0;
-        double totalWithdrawals = 0.0;
-        Map<String, Object> stats = new HashMap<>();
-        for (Transaction transaction : transactions) {
-            if (transaction.getType().equals("DEPOT")) {
-                totalDeposits += transaction.getAmount();
-            } else if (transaction.getType().equals("RETRAIT")) {
-                totalWithdrawals += transaction.getAmount();
-            }
-            numberOfTransactions++;
-        }
-        stats.put("number Of Transactions", numberOfTransactions);
-        stats.put("total Deposits", totalDeposits);
-        stats.put("total Withdrawals", totalWithdrawals);
-        for (Account account : atmManager.getAllAccounts()) {
-            if (account.getAccountNumber().equals(accountNumber)) {
-                stats.put("currentBalance", account.getBalance());
-                return ResponseEntity.ok(stats);
-            }
+        AccountStats accountStats;
+        try {
+            accountStats = atmManager.getStats(accountNumber);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.notFound().build();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("number Of Transactions", accountStats.transactionCount());
+        stats.put("total Deposits", Money.toAmount(accountStats.totalDeposits()));
+        stats.put("total Withdrawals", Money.toAmount(accountStats.totalWithdrawals()));
+        stats.put("currentBalance", Money.toAmount(accountStats.balance()));
+        return ResponseEntity.ok(stats);
     }
 }
 
@@ -0,0 +1,109 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Transaction;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Abonnement à l'activité d'un compte, obtenu par {@link AtmManager#subscribe}.
+ * <p>
+ * L'écrivain ne pousse rien dans l'abonnement : il lève seulement un drapeau
+ * « du nouveau », en temps constant et sans verrou. L'abonné relit ensuite
+ * l'historique du compte après la dernière transaction reçue. Un abonné lent
+ * ne retarde donc jamais les écritures et ne retient aucune file en mémoire :
+ * il rattrape son retard page par page.
+ */
+public final class AccountFeed implements AutoCloseable {
+
+    /**
+     * Transactions lues au plus par appel à {@link #poll}
+     */
+    static final int PAGE = 256;
+
+    interface Pager {
+        List<Transaction> page(String accountNumber, long afterId, int limit);
+    }
+
+    private final String accountNumber;
+    private final Pager pager;
+    private final Consumer<AccountFeed> onClose;
+    private final Semaphore signal = new Semaphore(0);
+    // Vrai au départ : le premier poll lit le rattrapage sans attendre
+    private final AtomicBoolean pending = new AtomicBoolean(true);
+    private volatile boolean closed;
+    private long lastId;
+
+    AccountFeed(String accountNumber, long afterId, Pager pager, Consumer<AccountFeed> onClose) {
+        this.accountNumber = accountNumber;
+        this.lastId = afterId;
+        this.pager = pager;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Appelé par l'écrivain après l'ajout d'une transaction : ne bloque jamais
+     */
+    void publish() {
+        if (pending.compareAndSet(false, true)) {
+            signal.release();
+        }
+    }
+
+    /**
+     * Transactions postérieures à la dernière reçue, dans l'ordre des ids.
+     * Attend au plus {@code timeout} qu'il y en ait ; liste vide si rien de neuf.
+     * Un seul thread lit l'abonnement.
+     */
+    public List<Transaction> poll(Duration timeout) throws InterruptedException {
+        if (closed) {
+            return List.of();
+        }
+        if (!pending.get() && !signal.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return List.of();
+        }
+        signal.drainPermits();
+        // Baissé avant la lecture : une transaction ajoutée pendant la lecture relève le drapeau
+        pending.set(false);
+        List<Transaction> page = pager.page(accountNumber, lastId, PAGE);
+        if (!page.isEmpty()) {
+            lastId = Long.parseLong(page.getLast().getId());
+        }
+        if (page.size() == PAGE) {
+            // Page pleine : la suite est lue au prochain appel, sans attendre
+            pending.set(true);
+        }
+        return page;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    /**
+     * Id de la dernière transaction reçue
+     */
+    public long lastId() {
+        return lastId;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Désabonne ; un poll en attente se termine aussitôt
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            onClose.accept(this);
+            signal.release();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Historique d'un seul compte, en ajout seul : positions de ses lignes
+ * dans le {@link TransactionLog}.
+ * Les positions sont rangées dans des blocs de taille croissante (8, 16, 32, ...)
+ * : l'agrandissement ne recopie jamais les blocs existants et un petit compte
+ * ne réserve que quelques cases.
+ * Un seul écrivain à la fois (l'appelant tient {@link #writeLock}), lectures sans verrou.
+ */
+class AccountHistory {
+
+    private static final int FIRST_CHUNK_SHIFT = 3;
+    private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_SHIFT;
+
+    // Clé compacte du compte dans le journal
+    final int accountKey;
+    // Verrou et non moniteur : un thread virtuel qui y attend ne bloque pas son porteur
+    final ReentrantLock writeLock = new ReentrantLock();
+
+    private final long[][] chunks = new long[31 - FIRST_CHUNK_SHIFT][];
+    private volatile int size;
+
+    AccountHistory(int accountKey) {
+        this.accountKey = accountKey;
+    }
+
+    /**
+     * Ajoute la position d'une ligne du journal en fin d'historique
+     */
+    void add(long position) {
+        int index = size;
+        int chunk = chunkOf(index);
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new long[FIRST_CHUNK_SIZE << chunk];
+        }
+        chunks[chunk][offsetOf(index, chunk)] = position;
+        // L'écriture volatile publie l'élément aux lecteurs
+        size = index + 1;
+    }
+
+    /**
+     * Matérialise l'historique publié, en O(k) pour k transactions du compte
+     */
+    List<Transaction> toList(TransactionLog log) {
+        int n = size;
+        List<Transaction> result = new ArrayList<>(n);
+        int copied = 0;
+        for (int chunk = 0; copied < n; chunk++) {
+            long[] positions = chunks[chunk];
+            int count = Math.min(positions.length, n - copied);
+            for (int i = 0; i < count; i++) {
+                result.add(log.get(positions[i]));
+            }
+            copied += count;
+        }
+        return result;
+    }
+
+    /**
+     * Parcourt l'historique publié en ne matérialisant que les lignes
+     * dont l'horodatage est dans [fromNanos, toNanos[
+     */
+    void forEach(TransactionLog log, long fromNanos, long toNanos, Consumer<Transaction> action) {
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            long position = positionAt(i);
+            long timestamp = log.timestampNanos(position);
+            if (timestamp >= fromNanos && timestamp < toNanos) {
+                action.accept(log.get(position));
+            }
+        }
+    }
+
+    /**
+     * Page d'au plus {@code limit} transactions, à partir de la première position
+     * supérieure ou égale à {@code fromPosition} : recherche dichotomique puis
+     * lecture de la page, sans dépendre de la taille de l'historique
+     */
+    List<Transaction> page(TransactionLog log, long fromPosition, int limit) {
+        int n = size;
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (positionAt(mid) < fromPosition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = (int) Math.min(n, (long) low + limit);
+        List<Transaction> result = new ArrayList<>(end - low);
+        for (int i = low; i < end; i++) {
+            result.add(log.get(positionAt(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Id de la dernière transaction publiée, 0 si l'historique est vide
+     */
+    long lastId() {
+        int n = size;
+        return n == 0 ? 0 : positionAt(n - 1) + 1;
+    }
+
+    private long positionAt(int index) {
+        int chunk = chunkOf(index);
+        return chunks[chunk][offsetOf(index, chunk)];
+    }
+
+    private static int chunkOf(int index) {
+        return 31 - Integer.numberOfLeadingZeros(index + FIRST_CHUNK_SIZE) - FIRST_CHUNK_SHIFT;
+    }
+
+    private static int offsetOf(int index, int chunk) {
+        return index + FIRST_CHUNK_SIZE - (FIRST_CHUNK_SIZE << chunk);
+    }
+}
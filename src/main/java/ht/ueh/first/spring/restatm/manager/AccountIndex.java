@@ -0,0 +1,235 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Index numéro de compte → compte.
+ *
+ * Les numéros purement numériques (« 123456 ») sont convertis en long et rangés
+ * dans une table à adressage ouvert (sondage linéaire) : ni hachage de String,
+ * ni nœud à suivre. Les autres numéros passent par une ConcurrentHashMap.
+ *
+ * Lectures sans verrou ; les écritures sont sérialisées par un ReentrantLock
+ * (les rappels de journalisation peuvent attendre : pas de moniteur qui bloquerait
+ * le porteur d'un thread virtuel).
+ * Une clé posée dans la table n'en bouge plus : une suppression vide seulement
+ * la valeur, et les clés mortes disparaissent au prochain agrandissement.
+ */
+class AccountIndex {
+
+    // Au-delà, la valeur ne tient plus dans un long sans risque
+    private static final int MAX_DIGITS = 18;
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Account[].class);
+
+    /**
+     * Clés = numéro + 1 (0 = case vide), valeurs null = compte supprimé
+     */
+    private record Table(long[] keys, Account[] values, int mask) {
+
+        Table(int capacity) {
+            this(new long[capacity], new Account[capacity], capacity - 1);
+        }
+    }
+
+    private final Map<String, Account> others = new ConcurrentHashMap<>();
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int numericSize;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Protégé par writeLock
+    private int usedKeys;
+
+    /**
+     * Numéro canonique (chiffres, sans zéro en tête) converti en long, -1 sinon
+     */
+    static long parse(String accountNumber) {
+        int length = accountNumber.length();
+        if (length == 0 || length > MAX_DIGITS || (accountNumber.charAt(0) == '0' && length > 1)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = accountNumber.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    Account get(String accountNumber) {
+        long number = parse(accountNumber);
+        if (number < 0) {
+            return others.get(accountNumber);
+        }
+        Table current = table;
+        int i = slot(current, number);
+        return i < 0 ? null : (Account) VALUES.getAcquire(current.values(), i);
+    }
+
+    /**
+     * Ajoute le compte si le numéro est libre ; {@code beforeVisible} s'exécute
+     * avant qu'il ne devienne visible
+     * @return false si le numéro est déjà pris
+     */
+    boolean putIfAbsent(String accountNumber, Account account, Runnable beforeVisible) {
+        writeLock.lock();
+        try {
+            if (get(accountNumber) != null) {
+                return false;
+            }
+            beforeVisible.run();
+            put(accountNumber, account);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Ajoute ou remplace le compte
+     */
+    void put(String accountNumber, Account account) {
+        writeLock.lock();
+        try {
+            long number = parse(accountNumber);
+            if (number < 0) {
+                others.put(accountNumber, account);
+            } else {
+                store(number, account);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Retire le compte ; {@code beforeRemoval} s'exécute avant qu'il ne disparaisse
+     * @return le compte retiré, ou null s'il n'existait pas
+     */
+    Account remove(String accountNumber, Runnable beforeRemoval) {
+        writeLock.lock();
+        try {
+            long number = parse(accountNumber);
+            if (number < 0) {
+                Account account = others.get(accountNumber);
+                if (account != null) {
+                    beforeRemoval.run();
+                    others.remove(accountNumber);
+                }
+                return account;
+            }
+            Table current = table;
+            int i = slot(current, number);
+            Account account = i < 0 ? null : current.values()[i];
+            if (account == null) {
+                return null;
+            }
+            beforeRemoval.run();
+            VALUES.setRelease(current.values(), i, (Account) null);
+            numericSize--;
+            return account;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    int size() {
+        return numericSize + others.size();
+    }
+
+    void forEach(Consumer<Account> action) {
+        Table current = table;
+        for (int i = 0; i <= current.mask(); i++) {
+            Account account = (Account) VALUES.getAcquire(current.values(), i);
+            if (account != null) {
+                action.accept(account);
+            }
+        }
+        others.values().forEach(action);
+    }
+
+    /**
+     * Case du numéro dans la table, ou -1 s'il n'y a jamais été posé
+     */
+    private static int slot(Table current, long number) {
+        long key = number + 1;
+        for (int i = hash(number) & current.mask(); ; i = (i + 1) & current.mask()) {
+            long k = (long) KEYS.getAcquire(current.keys(), i);
+            if (k == key) {
+                return i;
+            }
+            if (k == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void store(long number, Account account) {
+        Table current = table;
+        int i = slot(current, number);
+        if (i >= 0) {
+            if (current.values()[i] == null) {
+                numericSize++;
+            }
+            VALUES.setRelease(current.values(), i, account);
+            return;
+        }
+        // Sondage court jusqu'à 3/4 de remplissage
+        if ((usedKeys + 1) * 4L > (current.mask() + 1L) * 3) {
+            current = rehash(current);
+        }
+        insert(current, number, account);
+        usedKeys++;
+        numericSize++;
+    }
+
+    /**
+     * Valeur posée avant la clé : un lecteur qui voit la clé voit le compte
+     */
+    private static void insert(Table current, long number, Account account) {
+        int i = hash(number) & current.mask();
+        while (current.keys()[i] != 0) {
+            i = (i + 1) & current.mask();
+        }
+        VALUES.setRelease(current.values(), i, account);
+        KEYS.setRelease(current.keys(), i, number + 1);
+    }
+
+    /**
+     * Nouvelle table sans clés mortes, publiée d'un coup ; l'ancienne n'est plus modifiée
+     */
+    private Table rehash(Table current) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (numericSize + 1) * 2L) {
+            capacity <<= 1;
+        }
+        Table rebuilt = new Table(capacity);
+        usedKeys = 0;
+        for (int i = 0; i <= current.mask(); i++) {
+            Account account = current.values()[i];
+            if (account != null) {
+                insert(rebuilt, current.keys()[i] - 1, account);
+                usedKeys++;
+            }
+        }
+        table = rebuilt;
+        return rebuilt;
+    }
+
+    private static int hash(long number) {
+        long h = number * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,169 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountSnapshot;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.LedgerClock;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Stockage des comptes : numéro, titulaire, PIN, solde et statistiques.
+ * Chaque opération sur un compte est atomique ; les rappels {@code journal}
+ * s'exécutent pendant l'opération, pour que le journal garde l'ordre des mutations.
+ */
+interface AccountStore {
+
+    /**
+     * Version attendue quelconque : l'opération ne vérifie pas la version du compte
+     */
+    long ANY_VERSION = -1;
+
+    /**
+     * Choisit l'implémentation ({@code atm.store.type}) :
+     * {@code heap} (objets Java) ou {@code offheap} (mémoire native, éventuellement
+     * adossée au fichier {@code atm.store.file})
+     * @param clock horloge du gestionnaire qui date les versions des comptes
+     */
+    static AccountStore create(String type, String file, LedgerClock clock) {
+        return switch (type) {
+            case "heap" -> new HeapAccountStore(clock);
+            case "offheap" -> {
+                try {
+                    yield new OffHeapAccountStore(file == null || file.isBlank() ? null : Path.of(file));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot map account store " + file, e);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown account store: " + type);
+        };
+    }
+
+    /**
+     * Le compte, ou null s'il n'existe pas. Les modifications faites sur
+     * l'objet retourné ne sont pas garanties d'atteindre le stockage.
+     */
+    Account get(String accountNumber);
+
+    boolean contains(String accountNumber);
+
+    /**
+     * Solde et statistiques lus ensemble, ou null si le compte n'existe pas
+     */
+    AccountStats stats(String accountNumber);
+
+    /**
+     * Version du compte, augmentée à chaque modification, ou -1 s'il n'existe pas
+     */
+    long version(String accountNumber);
+
+    /**
+     * Ajoute le compte s'il n'existe pas ; {@code journal} s'exécute avant qu'il ne devienne visible
+     * @return false si le numéro est déjà pris
+     */
+    boolean create(Account account, Runnable journal);
+
+    /**
+     * Remplace ou ajoute un compte sans contrôle (relecture au démarrage)
+     */
+    void restore(String accountNumber, String owner, String pin, AccountStats stats);
+
+    /**
+     * Supprime le compte ; {@code journal} s'exécute avant qu'il ne disparaisse
+     * @return son dernier état, ou null s'il n'existait pas
+     */
+    AccountStats remove(String accountNumber, Runnable journal);
+
+    /**
+     * Applique une transaction sans contrôle du solde
+     * @return le solde en centimes après l'opération
+     */
+    default long apply(String accountNumber, TransactionType type, long amount) {
+        return apply(accountNumber, type, amount, null);
+    }
+
+    /**
+     * @param commit validation de l'opération sur plusieurs comptes dont c'est une jambe, ou null ;
+     *               l'appelant la valide une fois toutes les jambes posées
+     */
+    default long apply(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit) {
+        return apply(accountNumber, type, amount, commit, ANY_VERSION);
+    }
+
+    /**
+     * Crédit conditionnel : appliqué seulement si le compte est encore à {@code expectedVersion},
+     * vérifiée dans la même opération atomique que le crédit
+     * @throws ht.ueh.first.spring.restatm.models.VersionConflictException sinon, sans rien modifier
+     */
+    long apply(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit,
+               long expectedVersion);
+
+    /**
+     * Débite le compte si le solde le permet
+     * @return le solde en centimes après l'opération
+     */
+    default long debit(String accountNumber, TransactionType type, long amount) {
+        return debit(accountNumber, type, amount, null);
+    }
+
+    default long debit(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit) {
+        return debit(accountNumber, type, amount, commit, ANY_VERSION);
+    }
+
+    /**
+     * Débit conditionnel : appliqué seulement si le compte est encore à {@code expectedVersion},
+     * vérifiée dans la même opération atomique que le solde
+     * @throws ht.ueh.first.spring.restatm.models.VersionConflictException sinon, sans rien modifier
+     */
+    long debit(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit,
+               long expectedVersion);
+
+    /**
+     * Annule exactement une transaction appliquée par {@link #apply} ou {@link #debit}
+     * @return le solde en centimes après l'annulation
+     */
+    default long revert(String accountNumber, TransactionType type, long amount) {
+        return revert(accountNumber, type, amount, null);
+    }
+
+    long revert(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit);
+
+    /**
+     * Remplace le PIN ; {@code journal} s'exécute pendant la modification
+     * @return false si le compte n'existe pas
+     */
+    default boolean updatePin(String accountNumber, String pin, Runnable journal) {
+        return updatePin(accountNumber, pin, ANY_VERSION, journal);
+    }
+
+    /**
+     * Remplace le PIN si le compte est encore à {@code expectedVersion} ;
+     * {@code journal} ne s'exécute que si la modification a lieu
+     * @throws ht.ueh.first.spring.restatm.models.VersionConflictException sinon, sans rien modifier
+     */
+    boolean updatePin(String accountNumber, String pin, long expectedVersion, Runnable journal);
+
+    boolean verifyPin(String accountNumber, String pin);
+
+    int size();
+
+    void forEach(Consumer<Account> action);
+
+    /**
+     * Vrai si chaque compte garde les versions dont une lecture ouverte a besoin :
+     * {@link #forEachAt} lit alors à une séquence sans arrêter les écritures
+     */
+    boolean keepsVersions();
+
+    /**
+     * Parcourt les comptes tels qu'ils étaient à la séquence d'une lecture ouverte
+     * par {@link LedgerClock#openSnapshot()}, en copies sans PIN.
+     * Sans versions ({@link #keepsVersions()} faux), chaque compte est lu dans son état courant :
+     * l'appelant arrête lui-même les opérations sur plusieurs comptes pendant le parcours.
+     */
+    void forEachAt(long sequence, Consumer<AccountSnapshot> action);
+}
@@ -0,0 +1,84 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.BankAggregates;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totaux de la banque en temps réel : nombre et montant par type de transaction,
+ * argent détenu sur l'ensemble des comptes.
+ * Compteurs {@link LongAdder} : chaque écrivain incrémente sa propre cellule,
+ * les opérations concurrentes ne se disputent jamais la même ligne de cache.
+ * La lecture additionne les cellules, sans bloquer les écrivains.
+ */
+class AtmAggregates {
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private final LongAdder[] counts = new LongAdder[TYPES.length];
+    private final LongAdder[] amounts = new LongAdder[TYPES.length];
+    private final LongAdder money = new LongAdder();
+
+    AtmAggregates() {
+        for (int i = 0; i < TYPES.length; i++) {
+            counts[i] = new LongAdder();
+            amounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Compte une ligne d'historique ; dépôts et retraits changent aussi l'argent détenu
+     */
+    void record(TransactionType type, long amount) {
+        counts[type.ordinal()].increment();
+        amounts[type.ordinal()].add(amount);
+        switch (type) {
+            case DEPOT -> money.add(amount);
+            case RETRAIT -> money.add(-amount);
+            default -> {
+                // Un virement déplace l'argent sans changer le total
+            }
+        }
+    }
+
+    /**
+     * Ajoute des totaux par type chargés d'un instantané (indexés par ordinal) ;
+     * l'argent détenu est recalculé à part, voir {@link #resetMoney}
+     */
+    void restore(long[] countsByType, long[] amountsByType) {
+        for (int i = 0; i < TYPES.length; i++) {
+            counts[i].add(countsByType[i]);
+            amounts[i].add(amountsByType[i]);
+        }
+    }
+
+    /**
+     * Argent entré ou sorti hors transactions (création ou suppression d'un compte)
+     */
+    void adjustMoney(long delta) {
+        money.add(delta);
+    }
+
+    /**
+     * Remplace l'argent détenu (recalculé au démarrage à partir des comptes restaurés)
+     */
+    void resetMoney(long total) {
+        money.reset();
+        money.add(total);
+    }
+
+    BankAggregates snapshot(long accountCount) {
+        Map<String, Long> countsByType = new LinkedHashMap<>();
+        for (TransactionType type : TYPES) {
+            countsByType.put(type.name(), counts[type.ordinal()].sum());
+        }
+        return new BankAggregates(countsByType,
+                amounts[TransactionType.DEPOT.ordinal()].sum(),
+                amounts[TransactionType.RETRAIT.ordinal()].sum(),
+                amounts[TransactionType.VIREMENT_DEBIT.ordinal()].sum(),
+                money.sum(), accountCount);
+    }
+}
@@ -1,35 +1,186 @@
 package ht.ueh.first.spring.restatm.manager;
 
 import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountSnapshot;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.BankAggregates;
+import ht.ueh.first.spring.restatm.models.BankSnapshot;
+import ht.ueh.first.spring.restatm.models.BatchItemResult;
+import ht.ueh.first.spring.restatm.models.BatchOperation;
+import ht.ueh.first.spring.restatm.models.LedgerClock;
+import ht.ueh.first.spring.restatm.models.Money;
 import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 @Component
-public class AtmManager {
+public class AtmManager implements AutoCloseable {
 
-    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
-    private final List<Transaction> transactions = Collections.synchronizedList(new ArrayList<>());
-    private final AtomicInteger transactionCounter = new AtomicInteger(1);
+    /**
+     * Taille maximale d'une page de transactions
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Nombre maximal d'opérations dans un lot
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Version attendue quelconque : l'opération s'applique quelle que soit la version du compte
+     */
+    public static final long ANY_VERSION = AccountStore.ANY_VERSION;
+
+    private static final Logger log = LoggerFactory.getLogger(AtmManager.class);
+
+    // Ordre de prise des verrous d'historique quand plusieurs sont tenus ensemble
+    private static final Comparator<AccountHistory> BY_ACCOUNT_KEY = Comparator.comparingInt(h -> h.accountKey);
+
+    // Horloge des versions de comptes, propre à ce gestionnaire
+    private final LedgerClock clock = new LedgerClock();
+    private final AccountStore accounts;
+    private final TransactionLog transactions = new TransactionLog();
+    // Index par compte : évite de parcourir tout l'historique pour un seul compte
+    private final Map<String, AccountHistory> histories = new ConcurrentHashMap<>();
+    private final StripedLocks transferLocks = new StripedLocks();
+    private final AtmAggregates aggregates = new AtmAggregates();
+    private final AtmRepository repository;
+    private final IdempotencyCache idempotency;
+    // Mode fragmenté : null quand les requêtes modifient les comptes directement
+    private final AtmShards shards;
+    // Mode chaîne de traitement : null quand les requêtes modifient les comptes directement
+    private final AtmPipeline pipeline;
+    // Abonnés à l'activité de chaque compte ; copie à l'écriture : la publication parcourt sans verrou
+    private final Map<String, List<AccountFeed>> feeds = new ConcurrentHashMap<>();
 
+    /**
+     * Gestionnaire purement en mémoire, sans journal
+     */
     public AtmManager() {
-        // Initialisation avec quelques comptes de test
-        accounts.put("123456", new Account("123456", "Jean Dupont", 1000.0, "1234"));
-        accounts.put("789012", new Account("789012", "Marie Martin", 2500.0, "5678"));
-        accounts.put("345678", new Account("345678", "Pierre Durand", 500.0, "9012"));
-        accounts.put("654321", new Account("654321", "Calvert Wanguy", 25500.0, "5678"));
+        this(new AtmRepository(), "heap", null);
     }
 
-
+    /**
+     * Clés d'idempotence retenues 24 h, 100 000 au plus
+     */
+    public AtmManager(AtmRepository repository, String storeType, String storeFile) {
+        this(repository, storeType, storeFile, 100_000, 86_400, 0, 0);
+    }
 
     /**
-     * Récupère tous les comptes*/
+     * Reconstruit l'état à partir du dernier instantané et de la fin du journal,
+     * puis journalise chaque mutation.
+     * Une mutation n'est acquittée qu'une fois son enregistrement durable.
+     * @param storeType stockage des comptes : {@code heap} ou {@code offheap}
+     * @param storeFile fichier projeté pour le stockage {@code offheap} (vide = mémoire anonyme)
+     * @param idempotencyKeys nombre maximal de clés d'idempotence retenues
+     * @param idempotencyTtlSeconds durée pendant laquelle une clé d'idempotence est retenue
+     * @param shardCount nombre de fragments, chacun servi par un seul thread (0 = pas de fragments)
+     * @param ringSize emplacements de l'anneau de la chaîne de traitement (0 = pas de chaîne)
+     */
+    @Autowired
+    public AtmManager(AtmRepository repository,
+                      @Value("${atm.store.type:heap}") String storeType,
+                      @Value("${atm.store.file:}") String storeFile,
+                      @Value("${atm.idempotency.max-keys:100000}") int idempotencyKeys,
+                      @Value("${atm.idempotency.ttl-seconds:86400}") long idempotencyTtlSeconds,
+                      @Value("${atm.engine.shards:0}") int shardCount,
+                      @Value("${atm.engine.ring-size:0}") int ringSize) {
+        if (shardCount > 0 && ringSize > 0) {
+            throw new IllegalArgumentException("Shards and pipeline cannot be enabled together");
+        }
+        this.repository = repository;
+        this.idempotency = new IdempotencyCache(idempotencyKeys, idempotencyTtlSeconds);
+        this.shards = shardCount > 0 ? new AtmShards(shardCount) : null;
+        this.accounts = AccountStore.create(storeType, storeFile, clock);
+        this.pipeline = ringSize > 0
+                ? new AtmPipeline(ringSize, accounts, clock, transferLocks, this::indexTransactions) : null;
+        boolean restored;
+        long start = System.nanoTime();
+        try {
+            restored = repository.open(transactions, new Replay(),
+                    () -> AccountStore.create(storeType, null, new LedgerClock()),
+                    accountNumber -> historyOf(accountNumber).accountKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot replay write-ahead log", e);
+        }
+        if (restored) {
+            long[] money = {0};
+            accounts.forEach(account -> money[0] += account.balanceCents());
+            aggregates.resetMoney(money[0]);
+            log.info("Restored {} accounts and {} transactions in {} ms",
+                    accounts.size(), transactions.size(), (System.nanoTime() - start) / 1_000_000);
+        } else {
+            // Initialisation avec quelques comptes de test
+            create(new Account("123456", "Jean Dupont", 1000.0, "1234"));
+            create(new Account("789012", "Marie Martin", 2500.0, "5678"));
+            create(new Account("345678", "Pierre Durand", 500.0, "9012"));
+            create(new Account("654321", "Calvert Wanguy", 25500.0, "5678"));
+        }
+    }
+
+
 
+    /**
+     * Récupère tous les comptes : copies détachées d'un même instantané ({@link #getSnapshot()}), sans PIN
+     */
     public List<Account> getAllAccounts() {
-        return new ArrayList<>(accounts.values());
+        List<AccountSnapshot> snapshot = getSnapshot().accounts();
+        List<Account> all = new ArrayList<>(snapshot.size());
+        for (AccountSnapshot account : snapshot) {
+            all.add(new Account(account.accountNumber(), account.owner(), account.balance(), null));
+        }
+        return all;
+    }
+
+    /**
+     * Tous les comptes lus à une même séquence du registre, sans verrou et sans ralentir
+     * les écritures : chaque compte garde les versions dont une lecture ouverte a besoin.
+     * <p>
+     * Le stockage hors tas ne garde pas de versions : chaque compte y est lu dans son état
+     * courant, pendant que les verrous de tous les virements et lots sont tenus. Aucun
+     * virement n'est alors vu d'un seul côté ; ces opérations attendent la fin du parcours,
+     * les dépôts et retraits non.
+     */
+    public BankSnapshot getSnapshot() {
+        if (accounts.keepsVersions()) {
+            try (LedgerClock.Snapshot snapshot = clock.openSnapshot()) {
+                return readSnapshot(snapshot.sequence());
+            }
+        }
+        int[] stripes = transferLocks.lockEvery();
+        try {
+            return readSnapshot(clock.current());
+        } finally {
+            transferLocks.unlockAll(stripes);
+        }
+    }
+
+    private BankSnapshot readSnapshot(long sequence) {
+        List<AccountSnapshot> all = new ArrayList<>(accounts.size());
+        long[] money = {0};
+        accounts.forEachAt(sequence, account -> {
+            all.add(account);
+            money[0] += Money.toCents(account.balance());
+        });
+        // Somme faite en centimes : exacte, convertie une seule fois
+        return new BankSnapshot(sequence, Money.toAmount(money[0]), all);
     }
 
     /**
@@ -40,14 +191,34 @@ public class AtmManager {
     }
 
 
+    /**
+     * Version du compte, augmentée à chaque modification (opération, changement de PIN),
+     * ou -1 s'il n'existe pas. Lue avant le compte, elle n'est jamais plus récente que lui.
+     */
+    public long getVersion(String accountNumber) {
+        return accounts.version(accountNumber);
+    }
+
     /**
      * Crée un nouveau compte
      */
     public Account createAccount(Account account) {
-        if (accounts.containsKey(account.getAccountNumber())) {
+        return create(account);
+    }
+
+    /**
+     * Privée : appelée aussi par le constructeur, qu'une sous-classe ne peut pas détourner
+     */
+    private Account create(Account account) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>(1);
+        // Journalisé avant que le compte ne devienne visible
+        boolean created = accounts.create(account, () -> durable.add(repository.accountCreated(
+                account.getAccountNumber(), account.getOwner(), account.balanceCents(), account.getPin())));
+        if (!created) {
             throw new IllegalArgumentException("Account already exists");
         }
-        accounts.put(account.getAccountNumber(), account);
+        aggregates.adjustMoney(account.balanceCents());
+        AtmRepository.await(durable.get(0));
         return account;
     }
 
@@ -55,132 +226,902 @@ public class AtmManager {
      * Supprime un compte
      */
     public void deleteAccount(String accountNumber) {
-        if (!accounts.containsKey(accountNumber)) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>(1);
+        AccountStats removed;
+        // Sous le verrou des virements : un virement verrouillé ne voit pas disparaître l'un de ses comptes
+        transferLocks.lock(accountNumber);
+        try {
+            removed = accounts.remove(accountNumber, () -> durable.add(repository.accountDeleted(accountNumber)));
+        } finally {
+            transferLocks.unlock(accountNumber);
+        }
+        if (removed == null) {
             throw new IllegalArgumentException("Account does not exist");
         }
-        accounts.remove(accountNumber);
+        aggregates.adjustMoney(-removed.balance());
+        AtmRepository.await(durable.get(0));
     }
 
     /**
      * Vérifie le PIN d'un compte
      */
     public boolean verifyPin(String accountNumber, String pin) {
-        Account account = accounts.get(accountNumber);
-        if (account == null) {
-            return false;
-        }
-        return account.getPin().equals(pin);
+        return accounts.verifyPin(accountNumber, pin);
     }
 
     /**
      * Consulte le solde d'un compte
      */
     public double getBalance(String accountNumber) {
-        Account account = accounts.get(accountNumber);
-        if (account == null) {
+        return Money.toAmount(getBalanceCents(accountNumber));
+    }
+
+    /**
+     * Consulte le solde d'un compte, en centimes
+     */
+    public long getBalanceCents(String accountNumber) {
+        return getStats(accountNumber).balance();
+    }
+
+    /**
+     * Statistiques d'un compte (solde, nombre de transactions, totaux par type),
+     * tenues à jour à chaque opération : lecture en O(1)
+     */
+    public AccountStats getStats(String accountNumber) {
+        AccountStats stats = accounts.stats(accountNumber);
+        if (stats == null) {
             throw new IllegalArgumentException("Account not found");
         }
-        return account.getBalance();
+        return stats;
+    }
+
+    /**
+     * Totaux de la banque en temps réel (volumes et nombres par type, argent détenu),
+     * lus en temps constant
+     */
+    public BankAggregates getAggregates() {
+        return aggregates.snapshot(accounts.size());
     }
 
     /**
      * Effectue un dépôt
      */
     public Account deposit(String accountNumber, double amount) {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Amount must be positive");
+        return depositCents(accountNumber, Money.toCents(amount));
+    }
+
+    /**
+     * Effectue un dépôt, montant en centimes
+     */
+    public Account depositCents(String accountNumber, long amount) {
+        if (pipeline != null) {
+            checkAmount(amount);
+            pipeline.execute(AtmPipeline.DEPOSIT, accountNumber, null, amount, ANY_VERSION);
+            return accounts.get(accountNumber);
         }
+        AtmRepository.await(applyDeposit(accountNumber, amount, ANY_VERSION));
+        return accounts.get(accountNumber);
+    }
 
-        Account account = accounts.get(accountNumber);
-        if (account == null) {
-            throw new IllegalArgumentException("Account not found");
+    /**
+     * Effectue un dépôt sans bloquer l'appelant : le compte est retourné
+     * une fois l'opération durable
+     */
+    public CompletableFuture<Account> depositAsync(String accountNumber, double amount) {
+        return applyDeposit(accountNumber, Money.toCents(amount), ANY_VERSION)
+                .thenApply(v -> accounts.get(accountNumber));
+    }
+
+    /**
+     * Effectue un dépôt idempotent : rejoué avec la même clé, retourne le compte tel qu'après
+     * le dépôt d'origine sans déposer une seconde fois. Sans clé (null), dépôt ordinaire.
+     */
+    public Account deposit(String accountNumber, double amount, String idempotencyKey) {
+        return AtmRepository.await(depositAsync(accountNumber, amount, idempotencyKey));
+    }
+
+    public CompletableFuture<Account> depositAsync(String accountNumber, double amount, String idempotencyKey) {
+        return depositAsync(accountNumber, amount, ANY_VERSION, idempotencyKey);
+    }
+
+    /**
+     * Effectue un dépôt conditionnel (compare-and-set) : appliqué seulement si le compte
+     * est encore à {@code expectedVersion} (voir {@link #getVersion})
+     * @param expectedVersion version lue par le client, ou {@link #ANY_VERSION}
+     * @throws VersionConflictException si le compte a été modifié depuis ; rien n'est crédité
+     */
+    public Account deposit(String accountNumber, double amount, long expectedVersion, String idempotencyKey) {
+        return AtmRepository.await(depositAsync(accountNumber, amount, expectedVersion, idempotencyKey));
+    }
+
+    public CompletableFuture<Account> depositAsync(String accountNumber, double amount, long expectedVersion,
+                                                   String idempotencyKey) {
+        long cents = Money.toCents(amount);
+        if (idempotencyKey == null) {
+            return applyDeposit(accountNumber, cents, expectedVersion).thenApply(v -> accounts.get(accountNumber));
         }
+        return idempotency.execute(idempotencyKey,
+                fingerprint("DEPOT " + accountNumber + " " + cents, expectedVersion),
+                () -> applyDeposit(accountNumber, cents, expectedVersion)
+                        .thenApply(v -> copyOf(accounts.get(accountNumber))));
+    }
 
-        account.setBalance(account.getBalance() + amount);
-        addTransaction(accountNumber, "DEPOT", amount, account.getBalance());
-        return account;
+    private CompletableFuture<Void> applyDeposit(String accountNumber, long amount, long expectedVersion) {
+        checkAmount(amount);
+        if (pipeline != null) {
+            return pipelined(AtmPipeline.DEPOSIT, accountNumber, null, amount, expectedVersion);
+        }
+        if (shards != null) {
+            return shards.run(accountNumber, () -> recordDeposit(accountNumber, amount, expectedVersion));
+        }
+        return recordDeposit(accountNumber, amount, expectedVersion);
+    }
+
+    private CompletableFuture<Void> recordDeposit(String accountNumber, long amount, long expectedVersion) {
+        LedgerEntry entry;
+        CompletableFuture<Void> durable;
+        // Solde, historique et journal sous le même verrou : ils suivent l'ordre des soldes
+        AccountHistory[] locked = lockHistories(accountNumber);
+        try {
+            long balanceAfter = accounts.apply(accountNumber, TransactionType.DEPOT, amount, null, expectedVersion);
+            entry = new LedgerEntry(
+                    accountNumber, TransactionType.DEPOT, amount, balanceAfter, TransactionLog.epochNanos());
+            durable = appendTransactions(entry);
+        } finally {
+            unlockHistories(locked);
+        }
+        announce(entry);
+        return durable;
     }
 
     /**
      * Effectue un retrait
      */
     public Account withdraw(String accountNumber, double amount) {
-        if (amount <= 0) {
-            throw new IllegalArgumentException("Amount must be positive");
+        return withdrawCents(accountNumber, Money.toCents(amount));
+    }
+
+    /**
+     * Effectue un retrait, montant en centimes
+     */
+    public Account withdrawCents(String accountNumber, long amount) {
+        if (pipeline != null) {
+            checkAmount(amount);
+            pipeline.execute(AtmPipeline.WITHDRAWAL, accountNumber, null, amount, ANY_VERSION);
+            return accounts.get(accountNumber);
         }
+        AtmRepository.await(applyWithdrawal(accountNumber, amount, ANY_VERSION));
+        return accounts.get(accountNumber);
+    }
 
-        Account account = accounts.get(accountNumber);
-        if (account == null) {
-            throw new IllegalArgumentException("Account not found");
+    /**
+     * Effectue un retrait sans bloquer l'appelant : le compte est retourné
+     * une fois l'opération durable
+     */
+    public CompletableFuture<Account> withdrawAsync(String accountNumber, double amount) {
+        return applyWithdrawal(accountNumber, Money.toCents(amount), ANY_VERSION)
+                .thenApply(v -> accounts.get(accountNumber));
+    }
+
+    /**
+     * Effectue un retrait idempotent : rejoué avec la même clé, retourne le résultat
+     * du retrait d'origine sans débiter une seconde fois. Sans clé (null), retrait ordinaire.
+     */
+    public Account withdraw(String accountNumber, double amount, String idempotencyKey) {
+        return AtmRepository.await(withdrawAsync(accountNumber, amount, idempotencyKey));
+    }
+
+    public CompletableFuture<Account> withdrawAsync(String accountNumber, double amount, String idempotencyKey) {
+        return withdrawAsync(accountNumber, amount, ANY_VERSION, idempotencyKey);
+    }
+
+    /**
+     * Effectue un retrait conditionnel (compare-and-set) : appliqué seulement si le compte
+     * est encore à {@code expectedVersion} (voir {@link #getVersion}), sans verrou.
+     * La version est vérifiée dans la même opération atomique que le solde et le débit.
+     * @param expectedVersion version lue par le client, ou {@link #ANY_VERSION}
+     * @throws VersionConflictException si le compte a été modifié depuis ; rien n'est débité
+     */
+    public Account withdraw(String accountNumber, double amount, long expectedVersion, String idempotencyKey) {
+        return AtmRepository.await(withdrawAsync(accountNumber, amount, expectedVersion, idempotencyKey));
+    }
+
+    public CompletableFuture<Account> withdrawAsync(String accountNumber, double amount, long expectedVersion,
+                                                    String idempotencyKey) {
+        long cents = Money.toCents(amount);
+        if (idempotencyKey == null) {
+            return applyWithdrawal(accountNumber, cents, expectedVersion).thenApply(v -> accounts.get(accountNumber));
         }
+        return idempotency.execute(idempotencyKey,
+                fingerprint("RETRAIT " + accountNumber + " " + cents, expectedVersion),
+                () -> applyWithdrawal(accountNumber, cents, expectedVersion)
+                        .thenApply(v -> copyOf(accounts.get(accountNumber))));
+    }
 
-        if (account.getBalance() < amount) {
-            throw new IllegalArgumentException("Insufficient funds");
+    private CompletableFuture<Void> applyWithdrawal(String accountNumber, long amount, long expectedVersion) {
+        checkAmount(amount);
+        if (pipeline != null) {
+            return pipelined(AtmPipeline.WITHDRAWAL, accountNumber, null, amount, expectedVersion);
+        }
+        if (shards != null) {
+            return shards.run(accountNumber, () -> recordWithdrawal(accountNumber, amount, expectedVersion));
         }
+        return recordWithdrawal(accountNumber, amount, expectedVersion);
+    }
 
-        account.setBalance(account.getBalance() - amount);
-        addTransaction(accountNumber, "RETRAIT", amount, account.getBalance());
-        return account;
+    private CompletableFuture<Void> recordWithdrawal(String accountNumber, long amount, long expectedVersion) {
+        LedgerEntry entry;
+        CompletableFuture<Void> durable;
+        AccountHistory[] locked = lockHistories(accountNumber);
+        try {
+            // Vérification de la version, du solde et débit en une seule opération atomique
+            long balanceAfter = accounts.debit(accountNumber, TransactionType.RETRAIT, amount, null,
+                    expectedVersion);
+            entry = new LedgerEntry(
+                    accountNumber, TransactionType.RETRAIT, amount, balanceAfter, TransactionLog.epochNanos());
+            durable = appendTransactions(entry);
+        } finally {
+            unlockHistories(locked);
+        }
+        announce(entry);
+        return durable;
     }
 
     /**
      * Effectue un virement entre deux comptes
      */
     public void transfer(String fromAccount, String toAccount, double amount) {
+        transferCents(fromAccount, toAccount, Money.toCents(amount));
+    }
+
+    /**
+     * Effectue un virement entre deux comptes, montant en centimes
+     */
+    public void transferCents(String fromAccount, String toAccount, long amount) {
+        if (pipeline != null) {
+            checkAmount(amount);
+            pipeline.execute(AtmPipeline.TRANSFER, fromAccount, toAccount, amount, ANY_VERSION);
+            return;
+        }
+        // Attente de la durabilité hors des verrous : le lot suivant se remplit pendant ce temps
+        AtmRepository.await(applyTransfer(fromAccount, toAccount, amount, ANY_VERSION));
+    }
+
+    /**
+     * Effectue un virement sans bloquer l'appelant : complété une fois l'opération durable
+     */
+    public CompletableFuture<Void> transferAsync(String fromAccount, String toAccount, double amount) {
+        return applyTransfer(fromAccount, toAccount, Money.toCents(amount), ANY_VERSION);
+    }
+
+    /**
+     * Effectue un virement idempotent : rejoué avec la même clé, retourne le résultat
+     * du virement d'origine sans le refaire. Sans clé (null), virement ordinaire.
+     */
+    public void transfer(String fromAccount, String toAccount, double amount, String idempotencyKey) {
+        AtmRepository.await(transferAsync(fromAccount, toAccount, amount, idempotencyKey));
+    }
+
+    public CompletableFuture<Void> transferAsync(String fromAccount, String toAccount, double amount,
+                                                 String idempotencyKey) {
+        return transferAsync(fromAccount, toAccount, amount, ANY_VERSION, idempotencyKey);
+    }
+
+    /**
+     * Effectue un virement conditionnel (compare-and-set) : appliqué seulement si le compte
+     * débité est encore à {@code expectedVersion}, vérifiée avec le débit, sans verrou de plus
+     * @param expectedVersion version du compte source lue par le client, ou {@link #ANY_VERSION}
+     * @throws VersionConflictException si le compte source a été modifié depuis ; rien n'est viré
+     */
+    public void transfer(String fromAccount, String toAccount, double amount, long expectedVersion,
+                         String idempotencyKey) {
+        AtmRepository.await(transferAsync(fromAccount, toAccount, amount, expectedVersion, idempotencyKey));
+    }
+
+    public CompletableFuture<Void> transferAsync(String fromAccount, String toAccount, double amount,
+                                                 long expectedVersion, String idempotencyKey) {
+        long cents = Money.toCents(amount);
+        if (idempotencyKey == null) {
+            return applyTransfer(fromAccount, toAccount, cents, expectedVersion);
+        }
+        return idempotency.execute(idempotencyKey,
+                fingerprint("VIREMENT " + fromAccount + " " + toAccount + " " + cents, expectedVersion),
+                () -> applyTransfer(fromAccount, toAccount, cents, expectedVersion));
+    }
+
+    /**
+     * Empreinte d'une requête idempotente ; la version attendue en fait partie,
+     * mais une requête sans condition garde l'empreinte d'avant
+     */
+    private static String fingerprint(String request, long expectedVersion) {
+        return expectedVersion == ANY_VERSION ? request : request + " @" + expectedVersion;
+    }
+
+    /**
+     * Copie du compte à cet instant, sans PIN : le résultat mémorisé ne suit pas les opérations
+     * suivantes, et un rejeu de la clé d'idempotence ne rend pas le PIN
+     */
+    private static Account copyOf(Account account) {
+        if (account == null) {
+            return null;
+        }
+        return new Account(account.getAccountNumber(), account.getOwner(), null, account.stats());
+    }
+
+    private static void checkAmount(long amount) {
         if (amount <= 0) {
             throw new IllegalArgumentException("Amount must be positive");
         }
+    }
+
+    /**
+     * Commande passée à la chaîne de traitement sans attendre : son future est complété
+     * par la chaîne une fois la commande durable
+     */
+    private CompletableFuture<Void> pipelined(byte operation, String accountNumber, String toAccount, long amount,
+                                              long expectedVersion) {
+        return pipeline.submit(operation, accountNumber, toAccount, amount, expectedVersion);
+    }
 
-        Account from = accounts.get(fromAccount);
-        Account to = accounts.get(toAccount);
+    private CompletableFuture<Void> applyTransfer(String fromAccount, String toAccount, long amount,
+                                                  long expectedVersion) {
+        checkAmount(amount);
 
-        if (from == null || to == null) {
+        if (!accounts.contains(fromAccount) || !accounts.contains(toAccount)) {
             throw new IllegalArgumentException("Account not found");
         }
 
-        if (from.getBalance() < amount) {
+        if (pipeline != null) {
+            return pipelined(AtmPipeline.TRANSFER, fromAccount, toAccount, amount, expectedVersion);
+        }
+        if (shards == null) {
+            return transferLocked(fromAccount, toAccount, amount, expectedVersion);
+        }
+        if (shards.shardOf(fromAccount) == shards.shardOf(toAccount)) {
+            return shards.run(fromAccount, () -> transferLocked(fromAccount, toAccount, amount, expectedVersion));
+        }
+        return transferHandOff(fromAccount, toAccount, amount, expectedVersion);
+    }
+
+    private CompletableFuture<Void> transferLocked(String fromAccount, String toAccount, long amount,
+                                                   long expectedVersion) {
+        LedgerEntry[] legs;
+        CompletableFuture<Void> durable;
+        // Les deux comptes sont verrouillés dans un ordre global fixe, puis leurs historiques
+        transferLocks.lockPair(fromAccount, toAccount);
+        try {
+            AccountHistory[] locked = lockHistories(fromAccount, toAccount);
+            try {
+                LedgerClock.Commit commit = clock.begin();
+                long fromBalanceAfter;
+                long toBalanceAfter;
+                try {
+                    fromBalanceAfter = accounts.debit(fromAccount, TransactionType.VIREMENT_DEBIT, amount, commit,
+                            expectedVersion);
+                    try {
+                        toBalanceAfter = accounts.apply(toAccount, TransactionType.VIREMENT_CREDIT, amount, commit);
+                    } catch (IllegalArgumentException e) {
+                        // Crédit impossible : le débit est rendu sous la même validation, rien n'est journalisé
+                        accounts.revert(fromAccount, TransactionType.VIREMENT_DEBIT, amount, commit);
+                        throw e;
+                    }
+                } finally {
+                    // Les deux jambes deviennent visibles ensemble aux instantanés
+                    commit.commit();
+                }
+                legs = transferLegs(fromAccount, fromBalanceAfter, toAccount, toBalanceAfter, amount);
+                // Les deux jambes dans un seul enregistrement du journal
+                durable = appendTransactions(legs);
+            } finally {
+                unlockHistories(locked);
+            }
+        } finally {
+            transferLocks.unlockPair(fromAccount, toAccount);
+        }
+        announce(legs);
+        return durable;
+    }
+
+    /**
+     * Virement entre deux fragments : le fragment source vérifie la version et le solde
+     * (refus rapide, sans rien modifier) puis passe la main au fragment destinataire,
+     * qui pose les deux jambes comme un virement verrouillé. Les verrous ne peuvent pas
+     * passer d'un thread de fragment à l'autre : les deux jambes sont donc posées sur
+     * le même thread, et un échec d'un côté ou de l'autre ne débite rien.
+     */
+    private CompletableFuture<Void> transferHandOff(String fromAccount, String toAccount, long amount,
+                                                    long expectedVersion) {
+        return CompletableFuture
+                .runAsync(() -> checkDebit(fromAccount, amount, expectedVersion), shards.executor(fromAccount))
+                .thenComposeAsync(v -> transferLocked(fromAccount, toAccount, amount, expectedVersion),
+                        shards.executor(toAccount));
+    }
+
+    /**
+     * Refuse d'avance un débit que le compte ne permet pas ; le débit lui-même revérifie tout
+     */
+    private void checkDebit(String accountNumber, long amount, long expectedVersion) {
+        long version = accounts.version(accountNumber);
+        AccountStats stats = accounts.stats(accountNumber);
+        if (version < 0 || stats == null) {
+            throw new IllegalArgumentException("Account not found");
+        }
+        if (expectedVersion != ANY_VERSION && version != expectedVersion) {
+            throw new VersionConflictException(expectedVersion, version);
+        }
+        if (stats.balance() < amount) {
             throw new IllegalArgumentException("Insufficient funds");
         }
+    }
+
+    private static LedgerEntry[] transferLegs(String fromAccount, long fromBalanceAfter,
+                                              String toAccount, long toBalanceAfter, long amount) {
+        long timestamp = TransactionLog.epochNanos();
+        return new LedgerEntry[]{
+                new LedgerEntry(fromAccount, TransactionType.VIREMENT_DEBIT, amount, fromBalanceAfter, timestamp),
+                new LedgerEntry(toAccount, TransactionType.VIREMENT_CREDIT, amount, toBalanceAfter, timestamp)
+        };
+    }
+
+    /**
+     * Applique un lot d'opérations en une seule passe : les verrous de tous les comptes
+     * concernés sont pris une fois, et toutes les lignes produites forment un seul
+     * enregistrement du journal, attendu une seule fois.
+     * <p>
+     * Sans {@code atomic}, chaque opération réussit ou échoue seule, dans l'ordre du lot.
+     * Avec {@code atomic}, le lot est appliqué entièrement ou pas du tout : tous les débits
+     * passent d'abord, puis les crédits ; un crédit du lot ne finance donc pas un débit du même lot.
+     * @return un résultat par opération, dans l'ordre du lot
+     */
+    public List<BatchItemResult> applyBatch(List<BatchOperation> operations, boolean atomic) {
+        if (operations == null || operations.isEmpty()) {
+            throw new IllegalArgumentException("Empty batch");
+        }
+        if (operations.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch too large");
+        }
+
+        Set<String> involved = new HashSet<>();
+        for (BatchOperation operation : operations) {
+            if (operation.accountNumber() != null) {
+                involved.add(operation.accountNumber());
+            }
+            if (operation.toAccount() != null) {
+                involved.add(operation.toAccount());
+            }
+        }
+
+        BatchItemResult[] results = new BatchItemResult[operations.size()];
+        if (pipeline != null) {
+            // Appliqué par le thread métier, à son rang dans l'anneau : l'historique suit l'ordre des soldes
+            pipeline.execute(() -> {
+                int[] stripes = transferLocks.lockAll(involved);
+                try {
+                    return applyBatchLocked(operations, atomic, present(involved), results);
+                } finally {
+                    transferLocks.unlockAll(stripes);
+                }
+            });
+            return Arrays.asList(results);
+        }
+
+        LedgerEntry[] entries;
+        CompletableFuture<Void> durable = null;
+        int[] stripes = transferLocks.lockAll(involved);
+        try {
+            Set<String> present = present(involved);
+            // Soldes, historiques et journal sous les verrous de tous les historiques du lot
+            AccountHistory[] locked = lockHistories(present.toArray(new String[0]));
+            try {
+                entries = applyBatchLocked(operations, atomic, present, results);
+                if (entries.length > 0) {
+                    durable = appendTransactions(entries);
+                }
+            } finally {
+                unlockHistories(locked);
+            }
+        } finally {
+            transferLocks.unlockAll(stripes);
+        }
+        if (durable != null) {
+            announce(entries);
+            AtmRepository.await(durable);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Comptes du lot qui existent une fois ses verrous pris ; les autres sont refusés
+     */
+    private Set<String> present(Set<String> involved) {
+        Set<String> present = new HashSet<>(involved.size());
+        for (String accountNumber : involved) {
+            if (accounts.contains(accountNumber)) {
+                present.add(accountNumber);
+            }
+        }
+        return present;
+    }
+
+    /**
+     * Applique le lot, verrous des comptes tenus par l'appelant ; tout le lot devient
+     * visible d'un coup aux instantanés
+     * @return les lignes produites, dans l'ordre du lot
+     */
+    private LedgerEntry[] applyBatchLocked(List<BatchOperation> operations, boolean atomic, Set<String> present,
+                                           BatchItemResult[] results) {
+        List<LedgerEntry> entries = new ArrayList<>(operations.size() * 2);
+        LedgerClock.Commit commit = clock.begin();
+        long timestamp = TransactionLog.epochNanos();
+        try {
+            if (atomic) {
+                applyAllOrNothing(operations, timestamp, present, entries, results, commit);
+            } else {
+                for (int i = 0; i < results.length; i++) {
+                    try {
+                        results[i] = applyBatchItem(i, operations.get(i), timestamp, present, entries, commit);
+                    } catch (IllegalArgumentException e) {
+                        results[i] = BatchItemResult.failed(i, e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            commit.commit();
+        }
+        return entries.toArray(new LedgerEntry[0]);
+    }
 
-        from.setBalance(from.getBalance() - amount);
-        to.setBalance(to.getBalance() + amount);
+    private BatchItemResult applyBatchItem(int index, BatchOperation operation, long timestamp,
+                                           Set<String> present, List<LedgerEntry> entries,
+                                           LedgerClock.Commit commit) {
+        long amount = checkBatchOperation(operation);
+        String number = operation.accountNumber();
+        long balance = switch (operation.type()) {
+            case DEPOT -> batchLeg(number, TransactionType.DEPOT, amount, timestamp, present, entries, commit);
+            case RETRAIT -> batchLeg(number, TransactionType.RETRAIT, amount, timestamp, present, entries, commit);
+            case VIREMENT -> {
+                if (!present.contains(operation.toAccount())) {
+                    throw new IllegalArgumentException("Account not found");
+                }
+                long fromBalance = batchLeg(number, TransactionType.VIREMENT_DEBIT, amount, timestamp,
+                        present, entries, commit);
+                try {
+                    batchLeg(operation.toAccount(), TransactionType.VIREMENT_CREDIT, amount, timestamp,
+                            present, entries, commit);
+                } catch (IllegalArgumentException e) {
+                    // Compte supprimé entre-temps : le débit est annulé
+                    accounts.revert(number, TransactionType.VIREMENT_DEBIT, amount, commit);
+                    entries.removeLast();
+                    throw e;
+                }
+                yield fromBalance;
+            }
+        };
+        return BatchItemResult.ok(index, balance);
+    }
 
-        addTransaction(fromAccount, "VIREMENT_DEBIT", amount, from.getBalance());
-        addTransaction(toAccount, "VIREMENT_CREDIT", amount, to.getBalance());
+    private void applyAllOrNothing(List<BatchOperation> operations, long timestamp, Set<String> present,
+                                   List<LedgerEntry> entries, BatchItemResult[] results, LedgerClock.Commit commit) {
+        long[] amounts = new long[results.length];
+        for (int i = 0; i < results.length; i++) {
+            BatchOperation operation = operations.get(i);
+            try {
+                amounts[i] = checkBatchOperation(operation);
+                if (!present.contains(operation.accountNumber())
+                        || operation.type() == BatchOperation.Type.VIREMENT && !present.contains(operation.toAccount())) {
+                    throw new IllegalArgumentException("Account not found");
+                }
+            } catch (IllegalArgumentException e) {
+                rollBack(results, i, e.getMessage(), entries, commit);
+                return;
+            }
+        }
+
+        // Débits d'abord : les annuler ne peut que rendre de l'argent
+        int i = 0;
+        try {
+            for (; i < results.length; i++) {
+                BatchOperation operation = operations.get(i);
+                TransactionType type = switch (operation.type()) {
+                    case DEPOT -> null;
+                    case RETRAIT -> TransactionType.RETRAIT;
+                    case VIREMENT -> TransactionType.VIREMENT_DEBIT;
+                };
+                if (type != null) {
+                    long balance = batchLeg(operation.accountNumber(), type, amounts[i], timestamp,
+                            present, entries, commit);
+                    results[i] = BatchItemResult.ok(i, balance);
+                }
+            }
+            for (i = 0; i < results.length; i++) {
+                BatchOperation operation = operations.get(i);
+                if (operation.type() == BatchOperation.Type.DEPOT) {
+                    long balance = batchLeg(operation.accountNumber(), TransactionType.DEPOT, amounts[i],
+                            timestamp, present, entries, commit);
+                    results[i] = BatchItemResult.ok(i, balance);
+                } else if (operation.type() == BatchOperation.Type.VIREMENT) {
+                    batchLeg(operation.toAccount(), TransactionType.VIREMENT_CREDIT, amounts[i], timestamp,
+                            present, entries, commit);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            rollBack(results, i, e.getMessage(), entries, commit);
+        }
+    }
+
+    /**
+     * Annule les lignes déjà appliquées, de la dernière à la première, et marque le lot annulé
+     */
+    private void rollBack(BatchItemResult[] results, int failed, String message, List<LedgerEntry> entries,
+                          LedgerClock.Commit commit) {
+        for (LedgerEntry entry : entries.reversed()) {
+            accounts.revert(entry.accountNumber(), entry.type(), entry.amount(), commit);
+        }
+        entries.clear();
+        for (int i = 0; i < results.length; i++) {
+            results[i] = i == failed ? BatchItemResult.failed(i, message) : BatchItemResult.rolledBack(i);
+        }
+    }
+
+    private long batchLeg(String accountNumber, TransactionType type, long amount, long timestamp,
+                          Set<String> present, List<LedgerEntry> entries, LedgerClock.Commit commit) {
+        if (!present.contains(accountNumber)) {
+            throw new IllegalArgumentException("Account not found");
+        }
+        long balance = type == TransactionType.RETRAIT || type == TransactionType.VIREMENT_DEBIT
+                ? accounts.debit(accountNumber, type, amount, commit)
+                : accounts.apply(accountNumber, type, amount, commit);
+        entries.add(new LedgerEntry(accountNumber, type, amount, balance, timestamp));
+        return balance;
+    }
+
+    /**
+     * @return le montant de l'opération en centimes
+     */
+    private static long checkBatchOperation(BatchOperation operation) {
+        if (operation.type() == null || operation.accountNumber() == null
+                || operation.type() == BatchOperation.Type.VIREMENT && operation.toAccount() == null) {
+            throw new IllegalArgumentException("Invalid operation");
+        }
+        long amount = Money.toCents(operation.amount());
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
+        return amount;
     }
 
     /**
      * Récupère l'historique des transactions d'un compte
      */
     public List<Transaction> getTransactions(String accountNumber) {
-        List<Transaction> result = new ArrayList<>();
-        for (Transaction t : transactions) {
-            if (t.getAccountNumber().equals(accountNumber)) {
-                result.add(t);
-            }
+        AccountHistory history = histories.get(accountNumber);
+        if (history == null) {
+            return new ArrayList<>();
         }
-        return result;
+        return history.toList(transactions);
+    }
+
+    /**
+     * Récupère une page de l'historique d'un compte : au plus {@code limit}
+     * transactions dont l'id est strictement supérieur à {@code afterId}
+     * @throws IllegalArgumentException si {@code limit} n'est pas entre 1 et {@link #MAX_PAGE_SIZE}
+     */
+    public List<Transaction> getTransactions(String accountNumber, long afterId, int limit) {
+        AccountHistory history = histories.get(accountNumber);
+        if (history == null) {
+            return new ArrayList<>();
+        }
+        // id = position + 1 : la première position voulue est afterId
+        return history.page(transactions, afterId, pageSize(limit));
+    }
+
+    /**
+     * Id de la dernière transaction indexée dans l'historique du compte, 0 s'il n'en a pas.
+     * L'historique est indexé après la modification du solde : c'est cet id, et non la version
+     * du compte, qui dit si une page d'historique a changé.
+     */
+    public long getLastTransactionId(String accountNumber) {
+        AccountHistory history = histories.get(accountNumber);
+        return history == null ? 0 : history.lastId();
     }
 
     /**
      * Récupère toutes les transactions
      */
     public List<Transaction> getAllTransactions() {
-        return new ArrayList<>(transactions);
+        return transactions.toList();
     }
 
     /**
-     * Ajoute une transaction à l'historique
+     * Récupère une page de toutes les transactions : au plus {@code limit}
+     * transactions dont l'id est strictement supérieur à {@code afterId}
+     * @throws IllegalArgumentException si {@code limit} n'est pas entre 1 et {@link #MAX_PAGE_SIZE}
      */
-    private void addTransaction(String accountNumber, String type, double amount, double balanceAfter) {
-        Transaction transaction = new Transaction(
-                String.valueOf(transactionCounter.getAndIncrement()),
-                accountNumber,
-                type,
-                amount,
-                balanceAfter
-        );
-        transactions.add(transaction);
+    public List<Transaction> getAllTransactions(long afterId, int limit) {
+        return transactions.page(afterId, pageSize(limit));
+    }
+
+    /**
+     * Parcourt l'historique sans le copier, pour l'export en flux.
+     * Filtres optionnels (null = pas de filtre) : compte, et intervalle [from, to[.
+     */
+    public void forEachTransaction(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                   Consumer<Transaction> action) {
+        long fromNanos = from == null ? Long.MIN_VALUE : epochNanos(from);
+        long toNanos = to == null ? Long.MAX_VALUE : epochNanos(to);
+        if (accountNumber == null) {
+            transactions.forEach(fromNanos, toNanos, action);
+            return;
+        }
+        AccountHistory history = histories.get(accountNumber);
+        if (history != null) {
+            history.forEach(transactions, fromNanos, toNanos, action);
+        }
+    }
+
+    private static long epochNanos(LocalDateTime dateTime) {
+        Instant instant = dateTime.atZone(ZoneId.systemDefault()).toInstant();
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private static int pageSize(int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Invalid page size");
+        }
+        return limit;
+    }
+
+    /**
+     * Ajoute des transactions aux historiques et les journalise en un seul enregistrement.
+     * Les ids sont réservés sous le verrou du journal : ils suivent l'ordre des enregistrements,
+     * et la relecture au démarrage attribue les mêmes. L'appelant garde l'ordre de chaque
+     * historique : il tient ses verrous depuis la modification des soldes, ou il est le seul
+     * écrivain (thread d'indexation de la chaîne de traitement).
+     * @return l'acquittement de durabilité de l'enregistrement
+     */
+    private CompletableFuture<Void> appendTransactions(LedgerEntry... entries) {
+        long[] first = new long[1];
+        CompletableFuture<Void> durable = repository.transactions(
+                () -> first[0] = transactions.reserve(entries.length), entries);
+        for (int i = 0; i < entries.length; i++) {
+            LedgerEntry entry = entries[i];
+            AccountHistory history = historyOf(entry.accountNumber());
+            long position = first[0] + i;
+            transactions.set(position, history.accountKey, entry.type(), entry.amount(), entry.balanceAfter(),
+                    entry.timestampNanos());
+            history.writeLock.lock();
+            try {
+                history.add(position);
+            } finally {
+                history.writeLock.unlock();
+            }
+        }
+        return durable;
+    }
+
+    /**
+     * Indexe et journalise une tranche de la chaîne de traitement, dont le thread
+     * d'indexation est le seul écrivain des historiques
+     */
+    private CompletableFuture<Void> indexTransactions(LedgerEntry... entries) {
+        CompletableFuture<Void> durable = appendTransactions(entries);
+        announce(entries);
+        return durable;
+    }
+
+    /**
+     * Compte les transactions dans les agrégats et les signale aux abonnés
+     */
+    private void announce(LedgerEntry... entries) {
+        for (LedgerEntry entry : entries) {
+            aggregates.record(entry.type(), entry.amount());
+            publish(entry.accountNumber());
+        }
+    }
+
+    /**
+     * Ajoute une transaction relue du journal à l'historique, à la position suivante
+     */
+    private void appendToHistory(LedgerEntry entry) {
+        AccountHistory history = historyOf(entry.accountNumber());
+        history.writeLock.lock();
+        try {
+            history.add(transactions.append(history.accountKey, entry.type(), entry.amount(),
+                    entry.balanceAfter(), entry.timestampNanos()));
+        } finally {
+            history.writeLock.unlock();
+        }
+        announce(entry);
+    }
+
+    /**
+     * Verrouille les historiques des comptes, par clé croissante, en les créant au besoin
+     * @return les verrous pris, à rendre à {@link #unlockHistories}
+     * @throws IllegalArgumentException si l'un des comptes n'existe pas ; aucun verrou n'est tenu
+     */
+    private AccountHistory[] lockHistories(String... accountNumbers) {
+        AccountHistory[] locks = new AccountHistory[accountNumbers.length];
+        for (int i = 0; i < accountNumbers.length; i++) {
+            AccountHistory history = histories.get(accountNumbers[i]);
+            if (history == null) {
+                // Pas d'entrée au dictionnaire du journal pour un numéro inconnu
+                if (!accounts.contains(accountNumbers[i])) {
+                    throw new IllegalArgumentException("Account not found");
+                }
+                history = historyOf(accountNumbers[i]);
+            }
+            locks[i] = history;
+        }
+        Arrays.sort(locks, BY_ACCOUNT_KEY);
+        for (AccountHistory history : locks) {
+            history.writeLock.lock();
+        }
+        return locks;
+    }
+
+    private static void unlockHistories(AccountHistory[] locks) {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].writeLock.unlock();
+        }
+    }
+
+    private AccountHistory historyOf(String accountNumber) {
+        return histories.computeIfAbsent(accountNumber,
+                k -> new AccountHistory(transactions.registerAccount(k)));
+    }
+
+    /**
+     * Signale une nouvelle transaction aux abonnés du compte, sans jamais attendre l'un d'eux
+     */
+    private void publish(String accountNumber) {
+        List<AccountFeed> subscribers = feeds.get(accountNumber);
+        if (subscribers != null) {
+            for (AccountFeed feed : subscribers) {
+                feed.publish();
+            }
+        }
+    }
+
+    /**
+     * S'abonne à l'activité d'un compte : chaque transaction ajoutée à son historique
+     * est livrée à l'abonnement, dans l'ordre des ids. À fermer après usage.
+     * @param afterId reprise après cette transaction (0 = tout l'historique,
+     *                négatif = seulement les transactions à venir)
+     */
+    public AccountFeed subscribe(String accountNumber, long afterId) {
+        if (!accounts.contains(accountNumber)) {
+            throw new IllegalArgumentException("Account not found");
+        }
+        long from = afterId;
+        if (afterId < 0) {
+            AccountHistory history = histories.get(accountNumber);
+            from = history == null ? 0 : history.lastId();
+        }
+        AccountFeed feed = new AccountFeed(accountNumber, from, this::getTransactions,
+                closed -> feeds.computeIfPresent(accountNumber, (k, list) -> {
+                    list.remove(closed);
+                    return list.isEmpty() ? null : list;
+                }));
+        // Inscrit avant la première lecture : aucune transaction ne passe entre les deux
+        feeds.compute(accountNumber, (k, list) -> {
+            List<AccountFeed> subscribers = list == null ? new CopyOnWriteArrayList<>() : list;
+            subscribers.add(feed);
+            return subscribers;
+        });
+        return feed;
+    }
+
+    /**
+     * Arrête les threads des fragments ou de la chaîne de traitement
+     */
+    @Override
+    public void close() {
+        if (shards != null) {
+            shards.close();
+        }
+        if (pipeline != null) {
+            pipeline.close();
+        }
     }
 
     /**
@@ -189,15 +1130,73 @@ public class AtmManager {
      * @param newPin
      */
     public void updatePin(String accountNumber, String newPin) {
-        Account account = accounts.get(accountNumber);
-        if (account == null) {
+        updatePin(accountNumber, newPin, ANY_VERSION);
+    }
+
+    /**
+     * Modifie le PIN si le compte est encore à {@code expectedVersion} (compare-and-set)
+     * @param expectedVersion version lue par le client, ou {@link #ANY_VERSION}
+     * @throws VersionConflictException si le compte a été modifié depuis ; le PIN reste inchangé
+     */
+    public void updatePin(String accountNumber, String newPin, long expectedVersion) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>(1);
+        // Journalisé sous le verrou du compte : le journal garde l'ordre des modifications
+        if (!accounts.updatePin(accountNumber, newPin, expectedVersion,
+                () -> durable.add(repository.pinUpdated(accountNumber, newPin)))) {
             throw new IllegalArgumentException("Account not found");
         }
-        account.setPin(newPin);
+        AtmRepository.await(durable.get(0));
     }
 
+    /**
+     * Applique les enregistrements du journal au démarrage : les transactions
+     * sont rejouées comme des deltas de solde, dans l'ordre du journal, ce qui
+     * redonne à chacune l'id réservé à son écriture
+     */
+    private class Replay implements AtmRepository.Replay {
+
+        @Override
+        public void accountCreated(String accountNumber, String owner, long balance, String pin) {
+            accounts.restore(accountNumber, owner, pin, AccountStats.EMPTY.withBalance(balance));
+        }
+
+        @Override
+        public void accountRestored(String accountNumber, String owner, String pin, AccountStats stats) {
+            accounts.restore(accountNumber, owner, pin, stats);
+        }
+
+        @Override
+        public void accountDeleted(String accountNumber) {
+            accounts.remove(accountNumber, () -> {
+            });
+        }
+
+        @Override
+        public void pinUpdated(String accountNumber, String pin) {
+            accounts.updatePin(accountNumber, pin, () -> {
+            });
+        }
 
+        @Override
+        public void transaction(LedgerEntry entry) {
+            if (accounts.contains(entry.accountNumber())) {
+                accounts.apply(entry.accountNumber(), entry.type(), entry.amount());
+            }
+            appendToHistory(entry);
+        }
 
+        @Override
+        public void snapshotLoaded(long transactionCount, long[] countsByType, long[] amountsByType) {
+            aggregates.restore(countsByType, amountsByType);
+            AccountHistory[] rebuilt = transactions.rebuildHistories(transactionCount);
+            for (int key = 0; key < rebuilt.length; key++) {
+                // Une clé du dictionnaire sans ligne garde son historique vide : le compte
+                // ne reçoit jamais de seconde clé
+                AccountHistory history = rebuilt[key] != null ? rebuilt[key] : new AccountHistory(key);
+                histories.put(transactions.accountNumber(key), history);
+            }
+        }
+    }
 }
 
 
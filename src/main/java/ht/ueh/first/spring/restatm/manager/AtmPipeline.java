@@ -0,0 +1,516 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.LedgerClock;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Chaîne de traitement des dépôts, retraits, virements et lots autour d'un anneau
+ * d'emplacements préalloués, à la manière d'un Disruptor :
+ * <ol>
+ *     <li>la requête réserve un emplacement, y écrit sa commande et attend ;</li>
+ *     <li>un seul thread métier applique les commandes dans l'ordre de l'anneau :
+ *     l'historique de chaque compte suit l'ordre de ses soldes ;</li>
+ *     <li>derrière lui, un thread indexe l'historique et dépose au journal toutes
+ *     les commandes prêtes en un seul enregistrement ; les ids suivent l'ordre du journal ;</li>
+ *     <li>derrière lui, le journaliseur attend que la tranche soit durable, puis réveille
+ *     les requêtes, qui lisent leur résultat dans l'emplacement puis le rendent ; pour une
+ *     requête asynchrone, il complète le future porté par l'emplacement et le rend lui-même.</li>
+ * </ol>
+ * Côté requête synchrone, aucune allocation : ni file, ni objet commande, ni future ;
+ * une requête asynchrone n'alloue que son future.
+ * Chaque étape attend la précédente par quelques tours actifs, puis s'endort
+ * jusqu'à ce que l'étape précédente la réveille.
+ * <p>
+ * À la fermeture, les commandes publiées et pas encore acquittées échouent : elles ne sont
+ * pas durables, même si elles ont pu être appliquées en mémoire.
+ */
+final class AtmPipeline implements AutoCloseable {
+
+    static final byte DEPOSIT = 0;
+    static final byte WITHDRAWAL = 1;
+    static final byte TRANSFER = 2;
+    static final byte BATCH = 3;
+
+    /**
+     * Tours actifs avant qu'une étape en attente ne s'endorme ; aucun sur un seul cœur,
+     * où tourner à vide retarde justement le thread attendu
+     */
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 200 : 0;
+
+    /**
+     * Commandes au plus par enregistrement du journal
+     */
+    private static final int MAX_RECORD = 1024;
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    /**
+     * Ajout des lignes d'une tranche aux historiques, déposées au journal en un seul enregistrement
+     */
+    interface HistoryIndex {
+        /**
+         * @return l'acquittement de durabilité de l'enregistrement
+         */
+        CompletableFuture<Void> append(LedgerEntry... entries);
+    }
+
+    /**
+     * Un emplacement de l'anneau, réutilisé d'un tour à l'autre
+     */
+    private static final class Command {
+        // Séquence dont la commande est publiée dans l'emplacement
+        volatile long published = -1;
+        // Séquence autorisée à écrire dans l'emplacement (rendu par la requête précédente)
+        volatile long available;
+        volatile boolean done;
+
+        byte operation;
+        String accountNumber;
+        String toAccount;
+        long amount;
+        // Version attendue du compte débité, AccountStore.ANY_VERSION sans condition
+        long expectedVersion;
+        long balanceAfter;
+        long toBalanceAfter;
+        long timestampNanos;
+        // Lot : appliqué par le thread métier, qui y range ses lignes
+        Supplier<LedgerEntry[]> batch;
+        LedgerEntry[] entries;
+        // Durabilité de la tranche de la commande, posée par l'indexeur
+        CompletableFuture<Void> durable;
+        RuntimeException failure;
+        // Requête synchrone qui attend, ou future d'une requête asynchrone
+        Thread waiter;
+        CompletableFuture<Void> completion;
+    }
+
+    /**
+     * Une étape de consommation : son thread, et son attente active puis endormie
+     */
+    private abstract class Stage implements Runnable {
+
+        private volatile boolean sleeping;
+        private final Thread thread;
+
+        Stage(String name) {
+            this.thread = Thread.ofPlatform().name("atm-pipeline-" + name).daemon().unstarted(this);
+        }
+
+        abstract boolean ready();
+
+        /**
+         * Un tour d'attente ; l'appelant revérifie sa condition après chaque tour
+         */
+        void pause(int round) {
+            if (round < SPINS) {
+                Thread.onSpinWait();
+                return;
+            }
+            sleeping = true;
+            // Revérifié après l'annonce du sommeil : un signal ne peut pas être perdu
+            if (!ready() && running) {
+                LockSupport.park(this);
+            }
+            sleeping = false;
+        }
+
+        void signal() {
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private final Command[] ring;
+    private final int mask;
+    private final AccountStore accounts;
+    private final LedgerClock clock;
+    private final StripedLocks transferLocks;
+    private final HistoryIndex history;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long businessSequence = -1;
+    private volatile long historySequence = -1;
+    private volatile boolean running = true;
+    // Étapes arrêtées : plus aucune commande ne sera acquittée
+    private volatile boolean stopped;
+
+    private final Stage business = new Stage("business") {
+        private long next;
+
+        @Override
+        boolean ready() {
+            return ring[(int) next & mask].published == next;
+        }
+
+        @Override
+        public void run() {
+            int round = 0;
+            while (running) {
+                if (!ready()) {
+                    pause(round++);
+                    continue;
+                }
+                round = 0;
+                apply(ring[(int) next & mask]);
+                businessSequence = next++;
+                indexer.signal();
+                journal.signal();
+            }
+        }
+    };
+
+    private final Stage indexer = new Stage("history") {
+        private long next;
+
+        @Override
+        boolean ready() {
+            return businessSequence >= next;
+        }
+
+        @Override
+        public void run() {
+            List<LedgerEntry> entries = new ArrayList<>();
+            int round = 0;
+            while (running) {
+                if (!ready()) {
+                    pause(round++);
+                    continue;
+                }
+                round = 0;
+                long end = Math.min(businessSequence, next + MAX_RECORD - 1);
+                CompletableFuture<Void> durable = index(next, end, entries);
+                for (; next <= end; next++) {
+                    ring[(int) next & mask].durable = durable;
+                }
+                historySequence = end;
+                journal.signal();
+            }
+        }
+    };
+
+    private final Stage journal = new Stage("journal") {
+        private long next;
+
+        @Override
+        boolean ready() {
+            return historySequence >= next;
+        }
+
+        @Override
+        public void run() {
+            int round = 0;
+            while (running) {
+                if (!ready()) {
+                    pause(round++);
+                    continue;
+                }
+                round = 0;
+                long end = historySequence;
+                // Une attente par tranche : ses commandes partagent le même acquittement
+                CompletableFuture<Void> awaited = null;
+                RuntimeException failure = null;
+                for (; next <= end; next++) {
+                    Command command = ring[(int) next & mask];
+                    if (command.durable != awaited) {
+                        awaited = command.durable;
+                        failure = awaitDurable(awaited);
+                    }
+                    if (failure != null && command.failure == null) {
+                        command.failure = failure;
+                    }
+                    CompletableFuture<Void> completion = command.completion;
+                    if (completion == null) {
+                        Thread waiter = command.waiter;
+                        command.done = true;
+                        LockSupport.unpark(waiter);
+                    } else {
+                        RuntimeException error = command.failure;
+                        command.done = true;
+                        release(command, next);
+                        // Les suites du future s'exécutent ici : elles ne doivent pas attendre la chaîne
+                        if (error == null) {
+                            completion.complete(null);
+                        } else {
+                            completion.completeExceptionally(error);
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * @param size nombre d'emplacements, arrondi à la puissance de deux supérieure
+     * @param clock horloge des comptes, qui valide les deux jambes d'un virement
+     * @param transferLocks verrous des virements, partagés avec les suppressions de comptes et les instantanés
+     */
+    AtmPipeline(int size, AccountStore accounts, LedgerClock clock, StripedLocks transferLocks,
+                HistoryIndex history) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Ring size must be positive");
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.ring = new Command[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Command();
+            ring[i].available = i;
+        }
+        this.mask = capacity - 1;
+        this.accounts = accounts;
+        this.clock = clock;
+        this.transferLocks = transferLocks;
+        this.history = history;
+        business.thread.start();
+        indexer.thread.start();
+        journal.thread.start();
+    }
+
+    /**
+     * Publie une commande et attend qu'elle soit appliquée, indexée et durable
+     * @param toAccount compte crédité d'un virement, null sinon
+     * @param expectedVersion version que doit avoir le compte {@code accountNumber}, ou AccountStore.ANY_VERSION
+     * @return le solde en centimes du compte {@code accountNumber} après l'opération
+     * @throws IllegalStateException si la chaîne est fermée avant l'acquittement
+     */
+    long execute(byte operation, String accountNumber, String toAccount, long amount, long expectedVersion) {
+        return awaitResult(publish(operation, accountNumber, toAccount, amount, expectedVersion, null, null));
+    }
+
+    /**
+     * Publie un lot et attend qu'il soit appliqué, indexé et durable
+     * @param batch appliqué par le thread métier, à son rang ; retourne les lignes produites
+     */
+    void execute(Supplier<LedgerEntry[]> batch) {
+        awaitResult(publish(BATCH, null, null, 0, AccountStore.ANY_VERSION, batch, null));
+    }
+
+    private long awaitResult(long sequence) {
+        Command command = ring[(int) sequence & mask];
+        while (!command.done) {
+            if (stopped) {
+                throw closed();
+            }
+            LockSupport.park(this);
+        }
+        long balanceAfter = command.balanceAfter;
+        RuntimeException failure = command.failure;
+        release(command, sequence);
+        if (failure != null) {
+            throw failure;
+        }
+        return balanceAfter;
+    }
+
+    /**
+     * Publie une commande sans attendre : le future est complété par le journaliseur
+     * une fois la commande appliquée, indexée et durable
+     */
+    CompletableFuture<Void> submit(byte operation, String accountNumber, String toAccount, long amount,
+                                   long expectedVersion) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        publish(operation, accountNumber, toAccount, amount, expectedVersion, null, completion);
+        // Publiée pendant la fermeture : aucune étape ne l'acquittera
+        if (stopped) {
+            completion.completeExceptionally(closed());
+        }
+        return completion;
+    }
+
+    private long publish(byte operation, String accountNumber, String toAccount, long amount,
+                         long expectedVersion, Supplier<LedgerEntry[]> batch, CompletableFuture<Void> completion) {
+        if (!running) {
+            throw closed();
+        }
+        long sequence = claimed.getAndIncrement();
+        Command command = ring[(int) sequence & mask];
+        // Anneau plein : l'emplacement attend que la requête d'un tour plus tôt l'ait rendu
+        for (int round = 0; command.available != sequence; round++) {
+            if (!running) {
+                throw closed();
+            }
+            if (round < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(1_000);
+            }
+        }
+        command.operation = operation;
+        command.accountNumber = accountNumber;
+        command.toAccount = toAccount;
+        command.amount = amount;
+        command.expectedVersion = expectedVersion;
+        command.batch = batch;
+        command.entries = null;
+        command.failure = null;
+        command.done = false;
+        command.waiter = completion == null ? Thread.currentThread() : null;
+        command.completion = completion;
+        command.published = sequence;
+        business.signal();
+        return sequence;
+    }
+
+    /**
+     * Rend l'emplacement à la requête du tour suivant
+     */
+    private void release(Command command, long sequence) {
+        command.waiter = null;
+        command.completion = null;
+        command.accountNumber = null;
+        command.toAccount = null;
+        command.batch = null;
+        command.entries = null;
+        command.durable = null;
+        command.available = sequence + ring.length;
+    }
+
+    private static IllegalStateException closed() {
+        return new IllegalStateException("ATM pipeline closed");
+    }
+
+    /**
+     * Logique métier, sur le seul thread métier
+     */
+    private void apply(Command command) {
+        command.timestampNanos = TransactionLog.epochNanos();
+        try {
+            switch (command.operation) {
+                case DEPOSIT -> command.balanceAfter =
+                        accounts.apply(command.accountNumber, TransactionType.DEPOT, command.amount,
+                                null, command.expectedVersion);
+                case WITHDRAWAL -> command.balanceAfter =
+                        accounts.debit(command.accountNumber, TransactionType.RETRAIT, command.amount,
+                                null, command.expectedVersion);
+                case TRANSFER -> transfer(command);
+                case BATCH -> command.entries = command.batch.get();
+                default -> throw new IllegalArgumentException("Unknown command: " + command.operation);
+            }
+        } catch (RuntimeException e) {
+            // Refus métier ou panne : la commande échoue, le thread métier continue
+            command.failure = e;
+        }
+    }
+
+    /**
+     * Virement sous les verrous des deux comptes, comme hors de la chaîne : les deux jambes
+     * deviennent visibles ensemble aux instantanés, et aucune autre opération sur plusieurs
+     * comptes ne pose de version en attente sur l'un d'eux pendant ce temps
+     */
+    private void transfer(Command command) {
+        transferLocks.lockPair(command.accountNumber, command.toAccount);
+        try {
+            if (!accounts.contains(command.toAccount)) {
+                throw new IllegalArgumentException("Account not found");
+            }
+            LedgerClock.Commit commit = clock.begin();
+            try {
+                command.balanceAfter = accounts.debit(command.accountNumber, TransactionType.VIREMENT_DEBIT,
+                        command.amount, commit, command.expectedVersion);
+                try {
+                    command.toBalanceAfter = accounts.apply(command.toAccount,
+                            TransactionType.VIREMENT_CREDIT, command.amount, commit);
+                } catch (IllegalArgumentException e) {
+                    // Crédit impossible : le débit est rendu, rien n'est journalisé
+                    accounts.revert(command.accountNumber, TransactionType.VIREMENT_DEBIT, command.amount, commit);
+                    throw e;
+                }
+            } finally {
+                commit.commit();
+            }
+        } finally {
+            transferLocks.unlockPair(command.accountNumber, command.toAccount);
+        }
+    }
+
+    /**
+     * Indexe les commandes réussies de la tranche et les dépose au journal en un seul enregistrement
+     * @return l'acquittement de durabilité de la tranche
+     */
+    private CompletableFuture<Void> index(long from, long to, List<LedgerEntry> entries) {
+        entries.clear();
+        for (long sequence = from; sequence <= to; sequence++) {
+            Command command = ring[(int) sequence & mask];
+            if (command.failure != null) {
+                continue;
+            }
+            switch (command.operation) {
+                case DEPOSIT -> entries.add(new LedgerEntry(command.accountNumber, TransactionType.DEPOT,
+                        command.amount, command.balanceAfter, command.timestampNanos));
+                case WITHDRAWAL -> entries.add(new LedgerEntry(command.accountNumber, TransactionType.RETRAIT,
+                        command.amount, command.balanceAfter, command.timestampNanos));
+                case BATCH -> entries.addAll(Arrays.asList(command.entries));
+                default -> {
+                    entries.add(new LedgerEntry(command.accountNumber, TransactionType.VIREMENT_DEBIT,
+                            command.amount, command.balanceAfter, command.timestampNanos));
+                    entries.add(new LedgerEntry(command.toAccount, TransactionType.VIREMENT_CREDIT,
+                            command.amount, command.toBalanceAfter, command.timestampNanos));
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return DONE;
+        }
+        try {
+            return history.append(entries.toArray(new LedgerEntry[0]));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Attend la durabilité d'une tranche
+     * @return l'échec du journal, ou null
+     */
+    private static RuntimeException awaitDurable(CompletableFuture<Void> durable) {
+        try {
+            AtmRepository.await(durable);
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    /**
+     * Arrête les étapes puis fait échouer les commandes publiées qui n'ont pas été acquittées
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Stage stage : List.of(business, indexer, journal)) {
+            LockSupport.unpark(stage.thread);
+            try {
+                stage.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stopped = true;
+        // Une commande publiée après ce parcours voit stopped et échoue d'elle-même
+        for (Command command : ring) {
+            if (command.published != command.available || command.done) {
+                continue;
+            }
+            command.failure = closed();
+            CompletableFuture<Void> completion = command.completion;
+            Thread waiter = command.waiter;
+            command.done = true;
+            if (completion != null) {
+                completion.completeExceptionally(command.failure);
+            } else {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
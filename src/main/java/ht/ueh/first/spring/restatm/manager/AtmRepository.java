@@ -1,7 +1,603 @@
 package ht.ueh.first.spring.restatm.manager;
 
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32C;
+
+/**
+ * Journal binaire en ajout seul (write-ahead log) des mutations de comptes.
+ * <p>
+ * Format d'un enregistrement : longueur (int), CRC32C (int), puis la charge utile
+ * (type sur un octet suivi des champs). Un enregistrement incomplet ou corrompu
+ * en fin de fichier (arrêt brutal pendant une écriture) est ignoré puis tronqué.
+ * <p>
+ * Validation groupée (group commit) : les appelants encodent leur enregistrement
+ * et le déposent dans une file ; un seul thread écrivain prend tout ce qui est en
+ * attente, l'écrit en une fois et appelle {@code FileChannel.force} une seule fois
+ * pour tout le lot. Chaque appelant n'est acquitté qu'une fois son lot durable.
+ * <p>
+ * Le journal est découpé en segments {@code atm-<position>.wal}, nommés par la position
+ * globale de leur premier octet. Un instantané périodique ({@link AtmSnapshotter})
+ * couvre le journal jusqu'à une position P : au démarrage seul le reste du journal
+ * après P est rejoué, et les segments entièrement avant P sont supprimés.
+ * <p>
+ * Désactivé ({@code atm.wal.enabled=false}), le journal n'écrit rien et acquitte
+ * immédiatement.
+ */
 @Repository
-public class AtmRepository {
+public class AtmRepository implements AutoCloseable {
+
+    private static final byte ACCOUNT_CREATED = 1;
+    private static final byte ACCOUNT_DELETED = 2;
+    private static final byte PIN_UPDATED = 3;
+    private static final byte TRANSACTIONS = 4;
+
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_PREFIX = "atm-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private static final Logger log = LoggerFactory.getLogger(AtmRepository.class);
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long snapshotIntervalSeconds;
+
+    // Segment courant, manipulé par le seul thread écrivain une fois ouvert
+    private FileChannel channel;
+    private long segmentStart;
+    // Position globale jusqu'à laquelle le journal est durable
+    private volatile long durablePosition;
+
+    private AtmSnapshotter snapshotter;
+    private ScheduledExecutorService snapshots;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    private List<Pending> pending = new ArrayList<>();
+    private IOException failure;
+    private boolean closed;
+    private Thread writer;
+
+    private record Pending(ByteBuffer record, CompletableFuture<Void> durable) {
+    }
+
+    /**
+     * Rejoue les enregistrements du journal, dans l'ordre d'écriture
+     */
+    interface Replay {
+        void accountCreated(String accountNumber, String owner, long balance, String pin);
+
+        /**
+         * Compte chargé depuis un instantané, avec ses statistiques
+         */
+        void accountRestored(String accountNumber, String owner, String pin, AccountStats stats);
+
+        void accountDeleted(String accountNumber);
+
+        void pinUpdated(String accountNumber, String pin);
+
+        void transaction(LedgerEntry entry);
+
+        /**
+         * Un instantané vient d'être chargé : le journal des transactions contient
+         * ses {@code transactionCount} premières lignes, dont le nombre et le montant
+         * par type sont donnés (indexés par ordinal de {@link TransactionType})
+         */
+        void snapshotLoaded(long transactionCount, long[] countsByType, long[] amountsByType);
+    }
+
+    /**
+     * Journal désactivé : tout reste en mémoire
+     */
+    public AtmRepository() {
+        this.directory = null;
+        this.segmentBytes = 0;
+        this.snapshotIntervalSeconds = 0;
+    }
+
+    @Autowired
+    public AtmRepository(@Value("${atm.wal.enabled:false}") boolean enabled,
+                         @Value("${atm.wal.directory:data}") String directory,
+                         @Value("${atm.wal.segment-bytes:67108864}") long segmentBytes,
+                         @Value("${atm.snapshot.interval-seconds:60}") long snapshotIntervalSeconds) {
+        this.directory = enabled ? Path.of(directory) : null;
+        this.segmentBytes = segmentBytes;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Charge le dernier instantané, rejoue le journal après sa position, puis
+     * démarre l'écrivain et les instantanés périodiques.
+     * @param shadow table vide pour la copie fantôme des instantanés, du type de la table vivante
+     * @param accountKeys clé compacte d'un compte dans {@code transactions}
+     * @return true si un état persistant existait
+     */
+    boolean open(TransactionLog transactions, Replay replay, Supplier<AccountStore> shadow,
+                 ToIntFunction<String> accountKeys) throws IOException {
+        if (directory == null) {
+            return false;
+        }
+        Files.createDirectories(directory);
+        snapshotter = new AtmSnapshotter(directory, shadow.get(), accountKeys);
+        boolean found = snapshotter.load(transactions, replay);
+        long position = snapshotter.position();
+
+        // Le reste du journal alimente à la fois l'état vivant et la copie fantôme
+        Replay both = both(replay, snapshotter);
+        List<Long> starts = segmentStarts();
+        int first = 0;
+        while (first + 1 < starts.size() && starts.get(first + 1) <= position) {
+            first++;
+        }
+        segmentStart = position;
+        for (int i = first; i < starts.size(); i++) {
+            long start = starts.get(i);
+            segmentStart = start;
+            try (FileChannel segment = FileChannel.open(segmentPath(start),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = segment.size();
+                position = scan(segment, start, Math.max(0, position - start), size, both);
+                if (position - start < size) {
+                    // Fin de segment déchirée : on repart du dernier enregistrement valide
+                    segment.truncate(position - start);
+                    for (int j = i + 1; j < starts.size(); j++) {
+                        Files.delete(segmentPath(starts.get(j)));
+                    }
+                    break;
+                }
+            }
+        }
+        found |= position > 0;
+        log.info("Write-ahead log opened: snapshot at position {}, {} bytes replayed after it",
+                snapshotter.snapshotPosition(), position - snapshotter.snapshotPosition());
+
+        channel = FileChannel.open(segmentPath(segmentStart),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(position - segmentStart);
+        durablePosition = position;
+
+        writer = new Thread(this::writeLoop, "atm-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (snapshotIntervalSeconds > 0) {
+            snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "atm-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(this::snapshotQuietly,
+                    snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return found;
+    }
+
+    /**
+     * Amène la copie fantôme jusqu'à la fin durable du journal, écrit un instantané
+     * à cette position puis supprime les segments qu'il couvre entièrement
+     */
+    synchronized void snapshot() throws IOException {
+        if (snapshotter == null) {
+            return;
+        }
+        long target = durablePosition;
+        List<Long> starts = segmentStarts();
+        for (int i = 0; i < starts.size() && snapshotter.position() < target; i++) {
+            long start = starts.get(i);
+            long end = i + 1 < starts.size() ? starts.get(i + 1) : Long.MAX_VALUE;
+            if (end <= snapshotter.position()) {
+                continue;
+            }
+            try (FileChannel segment = FileChannel.open(segmentPath(start), StandardOpenOption.READ)) {
+                scan(segment, start, snapshotter.position() - start, Math.min(end, target) - start, snapshotter);
+            }
+        }
+        if (snapshotter.position() == snapshotter.snapshotPosition()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        snapshotter.write();
+        for (int i = 0; i + 1 < starts.size() && starts.get(i + 1) <= snapshotter.snapshotPosition(); i++) {
+            Files.deleteIfExists(segmentPath(starts.get(i)));
+        }
+        log.info("Snapshot written at position {} ({} accounts) in {} ms", snapshotter.snapshotPosition(),
+                snapshotter.accountCount(), (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            // L'instantané suivant reprendra là où la copie fantôme s'est arrêtée
+            log.warn("Snapshot failed", e);
+        }
+    }
+
+    /**
+     * Applique les enregistrements valides de [offset, limit[ d'un segment
+     * @return la position globale après le dernier enregistrement valide
+     */
+    private long scan(FileChannel segment, long start, long offset, long limit, Replay replay) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (offset + HEADER_SIZE <= limit) {
+            header.clear();
+            segment.read(header, offset);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length <= 0 || offset + HEADER_SIZE + length > limit) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            segment.read(payload, offset + HEADER_SIZE);
+            payload.flip();
+            if (crc(payload) != checksum) {
+                break;
+            }
+            apply(payload, replay);
+            offset += HEADER_SIZE + length;
+            snapshotter.position(start + offset);
+        }
+        return start + offset;
+    }
+
+    private List<Long> segmentStarts() throws IOException {
+        List<Long> starts = new ArrayList<>();
+        try (var files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> starts.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        starts.sort(null);
+        return starts;
+    }
+
+    private Path segmentPath(long start) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, start, SEGMENT_SUFFIX));
+    }
+
+    CompletableFuture<Void> accountCreated(String accountNumber, String owner, long balance, String pin) {
+        if (directory == null) {
+            return DONE;
+        }
+        byte[] number = utf8(accountNumber);
+        byte[] ownerBytes = utf8(owner);
+        byte[] pinBytes = utf8(pin);
+        ByteBuffer payload = ByteBuffer.allocate(1 + sizeOf(number) + sizeOf(ownerBytes) + 8 + sizeOf(pinBytes));
+        payload.put(ACCOUNT_CREATED);
+        putBytes(payload, number);
+        putBytes(payload, ownerBytes);
+        payload.putLong(balance);
+        putBytes(payload, pinBytes);
+        return enqueue(payload, null);
+    }
+
+    CompletableFuture<Void> accountDeleted(String accountNumber) {
+        if (directory == null) {
+            return DONE;
+        }
+        byte[] number = utf8(accountNumber);
+        ByteBuffer payload = ByteBuffer.allocate(1 + sizeOf(number));
+        payload.put(ACCOUNT_DELETED);
+        putBytes(payload, number);
+        return enqueue(payload, null);
+    }
+
+    CompletableFuture<Void> pinUpdated(String accountNumber, String pin) {
+        if (directory == null) {
+            return DONE;
+        }
+        byte[] number = utf8(accountNumber);
+        byte[] pinBytes = utf8(pin);
+        ByteBuffer payload = ByteBuffer.allocate(1 + sizeOf(number) + sizeOf(pinBytes));
+        payload.put(PIN_UPDATED);
+        putBytes(payload, number);
+        putBytes(payload, pinBytes);
+        return enqueue(payload, null);
+    }
+
+    /**
+     * Journalise les lignes d'une même opération dans un seul enregistrement :
+     * les deux jambes d'un virement sont durables ensemble ou pas du tout.
+     * <p>
+     * {@code beforeQueued} s'exécute sous le verrou de la file, juste avant que
+     * l'enregistrement n'y entre : ce qu'il numérote suit l'ordre du journal (les ids
+     * des transactions, que la relecture retrouve ainsi à l'identique). Il s'exécute
+     * aussi quand le journal est désactivé ou en échec : l'état en mémoire reste complet.
+     */
+    CompletableFuture<Void> transactions(Runnable beforeQueued, LedgerEntry... entries) {
+        if (directory == null) {
+            beforeQueued.run();
+            return DONE;
+        }
+        byte[][] numbers = new byte[entries.length][];
+        int size = 1 + 4;
+        for (int i = 0; i < entries.length; i++) {
+            numbers[i] = utf8(entries[i].accountNumber());
+            size += sizeOf(numbers[i]) + 1 + 8 + 8 + 8;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.put(TRANSACTIONS);
+        payload.putInt(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            LedgerEntry entry = entries[i];
+            putBytes(payload, numbers[i]);
+            payload.put((byte) entry.type().ordinal());
+            payload.putLong(entry.amount());
+            payload.putLong(entry.balanceAfter());
+            payload.putLong(entry.timestampNanos());
+        }
+        return enqueue(payload, beforeQueued);
+    }
+
+    /**
+     * Attend qu'un enregistrement soit durable
+     * @return la valeur de l'opération, s'il y en a une
+     */
+    static <T> T await(CompletableFuture<T> durable) {
+        try {
+            return durable.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw new UncheckedIOException("Write-ahead log failure", io);
+            }
+            // Refus métier transmis par une opération asynchrone : relancé tel quel
+            if (e.getCause() instanceof IllegalArgumentException refused) {
+                throw refused;
+            }
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(ByteBuffer payload, Runnable beforeQueued) {
+        payload.flip();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+        record.putInt(payload.remaining());
+        record.putInt(crc(payload));
+        record.put(payload);
+        record.flip();
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (beforeQueued != null) {
+                beforeQueued.run();
+            }
+            if (failure != null) {
+                durable.completeExceptionally(failure);
+            } else if (closed) {
+                durable.completeExceptionally(new IOException("Write-ahead log closed"));
+            } else {
+                pending.add(new Pending(record, durable));
+                hasPending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return durable;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    hasPending.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                // Tout ce qui est arrivé pendant le force précédent part dans ce lot
+                List<Pending> taken = pending;
+                pending = batch;
+                batch = taken;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i] = batch.get(i).record();
+                }
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) {
+                    remaining += buffer.remaining();
+                }
+                long written = remaining;
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                channel.force(false);
+                durablePosition += written;
+                if (channel.position() >= segmentBytes) {
+                    // Bascule sur un nouveau segment : les anciens pourront être supprimés
+                    channel.close();
+                    segmentStart = durablePosition;
+                    channel = FileChannel.open(segmentPath(segmentStart),
+                            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                }
+                for (Pending p : batch) {
+                    p.durable().complete(null);
+                }
+            } catch (IOException e) {
+                fail(batch, e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void fail(List<Pending> batch, IOException e) {
+        lock.lock();
+        try {
+            // Après une erreur d'écriture, le journal refuse toute nouvelle mutation
+            failure = e;
+            batch.addAll(pending);
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Pending p : batch) {
+            p.durable().completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (directory == null || channel == null) {
+            return;
+        }
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            try {
+                snapshots.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lock.lock();
+        try {
+            closed = true;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+        // Dernier instantané : le prochain démarrage n'aura presque rien à rejouer
+        try {
+            snapshot();
+        } finally {
+            snapshotter.close();
+        }
+    }
+
+    private static Replay both(Replay first, Replay second) {
+        return new Replay() {
+            @Override
+            public void accountCreated(String accountNumber, String owner, long balance, String pin) {
+                first.accountCreated(accountNumber, owner, balance, pin);
+                second.accountCreated(accountNumber, owner, balance, pin);
+            }
+
+            @Override
+            public void accountRestored(String accountNumber, String owner, String pin, AccountStats stats) {
+                first.accountRestored(accountNumber, owner, pin, stats);
+                second.accountRestored(accountNumber, owner, pin, stats);
+            }
+
+            @Override
+            public void accountDeleted(String accountNumber) {
+                first.accountDeleted(accountNumber);
+                second.accountDeleted(accountNumber);
+            }
+
+            @Override
+            public void pinUpdated(String accountNumber, String pin) {
+                first.pinUpdated(accountNumber, pin);
+                second.pinUpdated(accountNumber, pin);
+            }
+
+            @Override
+            public void transaction(LedgerEntry entry) {
+                first.transaction(entry);
+                second.transaction(entry);
+            }
+
+            @Override
+            public void snapshotLoaded(long transactionCount, long[] countsByType, long[] amountsByType) {
+                first.snapshotLoaded(transactionCount, countsByType, amountsByType);
+                second.snapshotLoaded(transactionCount, countsByType, amountsByType);
+            }
+        };
+    }
+
+    private static void apply(ByteBuffer payload, Replay replay) {
+        byte type = payload.get();
+        switch (type) {
+            case ACCOUNT_CREATED -> replay.accountCreated(
+                    getString(payload), getString(payload), payload.getLong(), getString(payload));
+            case ACCOUNT_DELETED -> replay.accountDeleted(getString(payload));
+            case PIN_UPDATED -> replay.pinUpdated(getString(payload), getString(payload));
+            case TRANSACTIONS -> {
+                int count = payload.getInt();
+                for (int i = 0; i < count; i++) {
+                    replay.transaction(new LedgerEntry(getString(payload),
+                            TransactionType.fromCode(payload.get()),
+                            payload.getLong(), payload.getLong(), payload.getLong()));
+                }
+            }
+            default -> throw new IllegalStateException("Unknown write-ahead log record type " + type);
+        }
+    }
+
+    private static int crc(ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    // Une chaîne null est écrite avec la longueur -1 et relue null
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,53 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Partition des comptes en fragments, chacun servi par un seul thread :
+ * les opérations d'un même compte s'exécutent l'une après l'autre sur le thread
+ * de son fragment, sans se disputer le compte avec les autres requêtes.
+ * Le fragment d'un compte ne dépend que de son numéro.
+ */
+final class AtmShards implements AutoCloseable {
+
+    private final ExecutorService[] executors;
+
+    AtmShards(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        this.executors = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            executors[i] = Executors.newSingleThreadExecutor(
+                    Thread.ofPlatform().name("atm-shard-" + i).daemon().factory());
+        }
+    }
+
+    int shardOf(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), executors.length);
+    }
+
+    Executor executor(String accountNumber) {
+        return executors[shardOf(accountNumber)];
+    }
+
+    /**
+     * Exécute {@code operation} sur le thread du fragment du compte
+     * @return le résultat de l'opération ; un refus (IllegalArgumentException) le complète en erreur
+     */
+    <T> CompletableFuture<T> run(String accountNumber, Supplier<CompletableFuture<T>> operation) {
+        return CompletableFuture.supplyAsync(operation, executor(accountNumber)).thenCompose(result -> result);
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+}
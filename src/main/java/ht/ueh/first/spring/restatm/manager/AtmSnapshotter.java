@@ -0,0 +1,418 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Instantanés de l'état, tenus à jour en suivant le journal (write-ahead log).
+ * <p>
+ * Le suiveur applique les enregistrements durables à une copie fantôme de la table
+ * des comptes : cette copie correspond exactement à une position du journal, ce que
+ * l'état vivant, modifié en parallèle, ne permet pas. La copie est un {@link AccountStore}
+ * du même type que la table vivante : hors du tas quand les comptes le sont.
+ * Le dictionnaire des comptes est celui du journal des transactions vivant, dont
+ * les clés ne changent jamais : la copie ne le duplique pas.
+ * <p>
+ * Deux fichiers :
+ * <ul>
+ *     <li>{@code atm.history} : l'historique en blocs complets de
+ *     {@link TransactionLog#SEGMENT_SIZE} lignes, en colonnes (clés, types, montants,
+ *     horodatages, soldes après). Ajout seul, un bloc n'est jamais réécrit.</li>
+ *     <li>{@code atm.snapshot} : position du journal, nombre de blocs d'historique,
+ *     dictionnaire des comptes, lignes du bloc incomplet, table des comptes et totaux
+ *     par type de transaction, suivis d'un CRC32C. Remplacé atomiquement (fichier
+ *     temporaire puis renommage).</li>
+ * </ul>
+ * Au démarrage, les deux fichiers sont projetés en mémoire. Des blocs d'historique,
+ * seule la colonne des clés est lue (pour reconstruire les historiques par compte) ;
+ * les autres colonnes restent dans le fichier projeté jusqu'à la première lecture
+ * du bloc. Les totaux enregistrés évitent de relire les montants.
+ */
+class AtmSnapshotter implements AtmRepository.Replay, AutoCloseable {
+
+    private static final int MAGIC = 0x41544D53;
+    // Version 2 : statistiques par compte après le solde ; version 3 : totaux par type à la fin
+    private static final int VERSION = 3;
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    static final int BLOCK_ROWS = TransactionLog.SEGMENT_SIZE;
+    private static final int ROW_BYTES = 4 + 1 + 8 + 8 + 8;
+    static final long BLOCK_BYTES = (long) BLOCK_ROWS * ROW_BYTES;
+    // Blocs projetés en mémoire à la fois au chargement
+    private static final int BLOCKS_PER_MAPPING = 256;
+
+    private final Path snapshotFile;
+    private final Path historyFile;
+    private FileChannel history;
+
+    // Copie fantôme des comptes, et clés compactes du journal des transactions vivant
+    private final AccountStore accounts;
+    private final ToIntFunction<String> accountKeys;
+    private TransactionLog log;
+
+    // Nombre et montant des transactions par type, à la position de la copie fantôme
+    private final long[] typeCounts = new long[TYPES.length];
+    private final long[] typeAmounts = new long[TYPES.length];
+
+    // Bloc d'historique en cours de remplissage
+    private final int[] keys = new int[BLOCK_ROWS];
+    private final byte[] types = new byte[BLOCK_ROWS];
+    private final long[] amounts = new long[BLOCK_ROWS];
+    private final long[] timestamps = new long[BLOCK_ROWS];
+    private final long[] balancesAfter = new long[BLOCK_ROWS];
+    private int rows;
+    private long blocks;
+
+    // Version de l'instantané chargé (0 sans instantané)
+    private int loadedVersion;
+    // Position du journal atteinte par la copie fantôme
+    private long position;
+    // Position couverte par le dernier instantané écrit
+    private long snapshotPosition;
+
+    /**
+     * @param accounts copie fantôme, vide, du même type que la table vivante
+     * @param accountKeys clé compacte d'un compte dans le journal des transactions vivant ;
+     *                    tout compte cité par un enregistrement durable en a déjà une
+     */
+    AtmSnapshotter(Path directory, AccountStore accounts, ToIntFunction<String> accountKeys) {
+        this.snapshotFile = directory.resolve("atm.snapshot");
+        this.historyFile = directory.resolve("atm.history");
+        this.accounts = accounts;
+        this.accountKeys = accountKeys;
+    }
+
+    long position() {
+        return position;
+    }
+
+    void position(long position) {
+        this.position = position;
+    }
+
+    long snapshotPosition() {
+        return snapshotPosition;
+    }
+
+    int accountCount() {
+        return accounts.size();
+    }
+
+    /**
+     * Charge le dernier instantané dans la copie fantôme, dans le journal des
+     * transactions et, par {@code replay}, dans la table des comptes vivante.
+     * @return false s'il n'existe encore aucun instantané
+     */
+    boolean load(TransactionLog log, AtmRepository.Replay replay) throws IOException {
+        this.log = log;
+        history = FileChannel.open(historyFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!Files.exists(snapshotFile)) {
+            history.truncate(0);
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buffer.limit() - 4;
+            if (end < 8 || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Corrupted snapshot " + snapshotFile);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(0, end));
+            if (buffer.getInt(end) != (int) crc.getValue()) {
+                throw new IOException("Corrupted snapshot " + snapshotFile);
+            }
+            buffer.position(4);
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version in " + snapshotFile);
+            }
+            position = buffer.getLong();
+            snapshotPosition = position;
+            blocks = buffer.getLong();
+
+            int dictionarySize = buffer.getInt();
+            for (int key = 0; key < dictionarySize; key++) {
+                log.registerAccount(getString(buffer));
+            }
+
+            rows = buffer.getInt();
+            buffer.asIntBuffer().get(keys, 0, rows);
+            buffer.position(buffer.position() + rows * 4);
+            buffer.get(types, 0, rows);
+            buffer.asLongBuffer().get(amounts, 0, rows);
+            buffer.position(buffer.position() + rows * 8);
+            buffer.asLongBuffer().get(timestamps, 0, rows);
+            buffer.position(buffer.position() + rows * 8);
+            buffer.asLongBuffer().get(balancesAfter, 0, rows);
+            buffer.position(buffer.position() + rows * 8);
+
+            int accountCount = buffer.getInt();
+            for (int i = 0; i < accountCount; i++) {
+                String accountNumber = getString(buffer);
+                String owner = getString(buffer);
+                long balance = buffer.getLong();
+                String pin = getString(buffer);
+                AccountStats stats = version == 1
+                        ? AccountStats.EMPTY.withBalance(balance)
+                        : new AccountStats(balance, buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                                buffer.getLong(), buffer.getLong());
+                accounts.restore(accountNumber, owner, pin, stats);
+                replay.accountRestored(accountNumber, owner, pin, stats);
+            }
+
+            if (version >= 3) {
+                for (int i = 0; i < TYPES.length; i++) {
+                    typeCounts[i] = buffer.getLong();
+                    typeAmounts[i] = buffer.getLong();
+                }
+            }
+            loadedVersion = version;
+        }
+
+        // Des blocs au-delà de l'instantané viennent d'un instantané interrompu
+        history.truncate(blocks * BLOCK_BYTES);
+        for (long first = 0; first < blocks; first += BLOCKS_PER_MAPPING) {
+            long count = Math.min(BLOCKS_PER_MAPPING, blocks - first);
+            // Projection gardée par les blocs restaurés : le fichier n'est plus jamais tronqué
+            // en deçà, et un bloc écrit n'est jamais réécrit
+            MappedByteBuffer mapping = history.map(FileChannel.MapMode.READ_ONLY,
+                    first * BLOCK_BYTES, count * BLOCK_BYTES);
+            for (int b = 0; b < count; b++) {
+                restoreBlock(log, mapping.slice((int) (b * BLOCK_BYTES), (int) BLOCK_BYTES));
+            }
+        }
+        for (int i = 0; i < rows; i++) {
+            log.append(keys[i], TransactionType.fromCode(types[i]), amounts[i], balancesAfter[i], timestamps[i]);
+        }
+        if (loadedVersion < 3) {
+            // Instantané sans totaux : ils sont recalculés une fois à partir de l'historique
+            log.forEachAmount(log.size(), (type, amount) -> {
+                typeCounts[type.ordinal()]++;
+                typeAmounts[type.ordinal()] += amount;
+            });
+        }
+        replay.snapshotLoaded(log.size(), typeCounts.clone(), typeAmounts.clone());
+        return true;
+    }
+
+    /**
+     * Écrit un instantané à la position courante de la copie fantôme
+     */
+    void write() throws IOException {
+        // Les blocs référencés par l'instantané doivent être durables avant lui
+        history.force(false);
+
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16), crc);
+             DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(position);
+            out.writeLong(blocks);
+
+            // Dictionnaire vivant entier : il contient toutes les clés des lignes écrites,
+            // et son ordre redonne les mêmes clés au chargement
+            int dictionarySize = log.accountCount();
+            out.writeInt(dictionarySize);
+            for (int key = 0; key < dictionarySize; key++) {
+                writeString(out, log.accountNumber(key));
+            }
+
+            out.writeInt(rows);
+            for (int i = 0; i < rows; i++) {
+                out.writeInt(keys[i]);
+            }
+            out.write(types, 0, rows);
+            for (int i = 0; i < rows; i++) {
+                out.writeLong(amounts[i]);
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeLong(timestamps[i]);
+            }
+            for (int i = 0; i < rows; i++) {
+                out.writeLong(balancesAfter[i]);
+            }
+
+            // Seul le suiveur modifie la copie fantôme : le parcours voit exactement size() comptes
+            out.writeInt(accounts.size());
+            try {
+                accounts.forEach(account -> {
+                    try {
+                        writeAccount(out, account);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            for (int i = 0; i < TYPES.length; i++) {
+                out.writeLong(typeCounts[i]);
+                out.writeLong(typeAmounts[i]);
+            }
+            // Le CRC couvre tout ce qui précède
+            out.writeInt((int) crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        snapshotPosition = position;
+    }
+
+    @Override
+    public void accountCreated(String accountNumber, String owner, long balance, String pin) {
+        accounts.restore(accountNumber, owner, pin, AccountStats.EMPTY.withBalance(balance));
+    }
+
+    @Override
+    public void accountRestored(String accountNumber, String owner, String pin, AccountStats stats) {
+        accounts.restore(accountNumber, owner, pin, stats);
+    }
+
+    @Override
+    public void accountDeleted(String accountNumber) {
+        accounts.remove(accountNumber, () -> {
+        });
+    }
+
+    @Override
+    public void pinUpdated(String accountNumber, String pin) {
+        accounts.updatePin(accountNumber, pin, () -> {
+        });
+    }
+
+    @Override
+    public void transaction(LedgerEntry entry) {
+        if (rows == BLOCK_ROWS) {
+            // Bloc plein écrit avant toute modification : un échec laisse la copie fantôme intacte
+            try {
+                writeBlock();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (accounts.contains(entry.accountNumber())) {
+            accounts.apply(entry.accountNumber(), entry.type(), entry.amount());
+        }
+        typeCounts[entry.type().ordinal()]++;
+        typeAmounts[entry.type().ordinal()] += entry.amount();
+        keys[rows] = accountKeys.applyAsInt(entry.accountNumber());
+        types[rows] = (byte) entry.type().ordinal();
+        amounts[rows] = entry.amount();
+        timestamps[rows] = entry.timestampNanos();
+        balancesAfter[rows] = entry.balanceAfter();
+        rows++;
+    }
+
+    @Override
+    public void snapshotLoaded(long transactionCount, long[] countsByType, long[] amountsByType) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        ByteBuffer block = ByteBuffer.allocate((int) BLOCK_BYTES);
+        block.asIntBuffer().put(keys);
+        block.position(BLOCK_ROWS * 4);
+        block.put(types);
+        block.asLongBuffer().put(amounts);
+        block.position(block.position() + BLOCK_ROWS * 8);
+        block.asLongBuffer().put(timestamps);
+        block.position(block.position() + BLOCK_ROWS * 8);
+        block.asLongBuffer().put(balancesAfter);
+        block.clear();
+        // Écriture à une position explicite : une tentative ratée est simplement refaite
+        long offset = blocks * BLOCK_BYTES;
+        while (block.hasRemaining()) {
+            offset += history.write(block, offset);
+        }
+        blocks++;
+        rows = 0;
+    }
+
+    /**
+     * Restaure un bloc : la colonne des clés tout de suite, les autres à la première lecture
+     */
+    private static void restoreBlock(TransactionLog log, ByteBuffer block) {
+        int[] blockKeys = new int[BLOCK_ROWS];
+        block.asIntBuffer().get(blockKeys);
+        log.restoreSegment(blockKeys, () -> readColumns(block));
+    }
+
+    private static TransactionLog.Columns readColumns(ByteBuffer mapped) {
+        ByteBuffer block = mapped.duplicate();
+        byte[] blockTypes = new byte[BLOCK_ROWS];
+        long[] blockAmounts = new long[BLOCK_ROWS];
+        long[] blockTimestamps = new long[BLOCK_ROWS];
+        long[] blockBalances = new long[BLOCK_ROWS];
+        block.position(BLOCK_ROWS * 4);
+        block.get(blockTypes);
+        block.asLongBuffer().get(blockAmounts);
+        block.position(block.position() + BLOCK_ROWS * 8);
+        block.asLongBuffer().get(blockTimestamps);
+        block.position(block.position() + BLOCK_ROWS * 8);
+        block.asLongBuffer().get(blockBalances);
+        return new TransactionLog.Columns(blockTypes, blockAmounts, blockTimestamps, blockBalances);
+    }
+
+    private static void writeAccount(DataOutputStream out, Account account) throws IOException {
+        writeString(out, account.getAccountNumber());
+        writeString(out, account.getOwner());
+        AccountStats stats = account.stats();
+        out.writeLong(stats.balance());
+        writeString(out, account.getPin());
+        out.writeLong(stats.transactionCount());
+        out.writeLong(stats.totalDeposits());
+        out.writeLong(stats.totalWithdrawals());
+        out.writeLong(stats.totalTransfersIn());
+        out.writeLong(stats.totalTransfersOut());
+    }
+
+    // Une chaîne null est écrite avec la longueur -1 et relue null, comme dans le journal
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountSnapshot;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.LedgerClock;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+import java.util.function.Consumer;
+
+/**
+ * Comptes gardés comme objets {@link Account}, indexés par {@link AccountIndex} :
+ * les objets retournés sont les comptes eux-mêmes.
+ * Chaque compte garde ses versions récentes : {@link #forEachAt} lit tous les
+ * comptes à une même séquence sans arrêter les écritures.
+ */
+class HeapAccountStore implements AccountStore {
+
+    private final AccountIndex accounts = new AccountIndex();
+    private final StripedLocks pinLocks = new StripedLocks();
+    private final LedgerClock clock;
+
+    HeapAccountStore(LedgerClock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public Account get(String accountNumber) {
+        return accounts.get(accountNumber);
+    }
+
+    @Override
+    public boolean contains(String accountNumber) {
+        return accounts.get(accountNumber) != null;
+    }
+
+    @Override
+    public AccountStats stats(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? null : account.stats();
+    }
+
+    @Override
+    public long version(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        return account == null ? -1 : account.version();
+    }
+
+    @Override
+    public boolean create(Account account, Runnable journal) {
+        Account stored = new Account(clock, account.getAccountNumber(), account.getOwner(), account.getPin(),
+                account.stats());
+        // Première version datée au moment de la publication, pas de la construction de l'objet
+        return accounts.putIfAbsent(account.getAccountNumber(), stored, () -> {
+            journal.run();
+            stored.markVisible();
+        });
+    }
+
+    @Override
+    public void restore(String accountNumber, String owner, String pin, AccountStats stats) {
+        Account restored = new Account(clock, accountNumber, owner, pin, stats);
+        restored.markVisible();
+        accounts.put(accountNumber, restored);
+    }
+
+    @Override
+    public AccountStats remove(String accountNumber, Runnable journal) {
+        Account removed = accounts.remove(accountNumber, journal);
+        // Une écriture qui tenait encore l'objet échoue ou est comptée dans le solde rendu
+        return removed == null ? null : removed.retire();
+    }
+
+    @Override
+    public long apply(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit,
+                      long expectedVersion) {
+        return require(accountNumber).apply(type, amount, commit, expectedVersion);
+    }
+
+    @Override
+    public long debit(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit,
+                      long expectedVersion) {
+        return require(accountNumber).debit(type, amount, commit, expectedVersion);
+    }
+
+    @Override
+    public long revert(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit) {
+        return require(accountNumber).revert(type, amount, commit);
+    }
+
+    @Override
+    public boolean updatePin(String accountNumber, String pin, long expectedVersion, Runnable journal) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            return false;
+        }
+        // Le verrou n'ordonne que le journal entre deux changements de PIN ; la version est vérifiée par CAS
+        pinLocks.lock(accountNumber);
+        try {
+            account.setPin(pin, expectedVersion);
+            journal.run();
+        } finally {
+            pinLocks.unlock(accountNumber);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean verifyPin(String accountNumber, String pin) {
+        Account account = accounts.get(accountNumber);
+        return account != null && account.getPin().equals(pin);
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        accounts.forEach(action);
+    }
+
+    @Override
+    public boolean keepsVersions() {
+        return true;
+    }
+
+    @Override
+    public void forEachAt(long sequence, Consumer<AccountSnapshot> action) {
+        accounts.forEach(account -> {
+            AccountStats stats = account.statsAt(sequence);
+            if (stats != null) {
+                action.accept(AccountSnapshot.of(account.getAccountNumber(), account.getOwner(), stats));
+            }
+        });
+    }
+
+    private Account require(String accountNumber) {
+        Account account = accounts.get(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Account not found");
+        }
+        return account;
+    }
+}
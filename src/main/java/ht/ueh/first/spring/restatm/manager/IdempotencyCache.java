@@ -0,0 +1,158 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Mémoire des opérations déjà exécutées, indexée par clé d'idempotence :
+ * une requête rejouée avec la même clé reçoit le résultat d'origine sans
+ * repasser par le chemin d'écriture.
+ * <p>
+ * Nombre de clés borné et durée de vie fixe. Les clés sont évincées dans l'ordre
+ * d'insertion, qui est aussi celui d'expiration. Une insertion qui dépasse la borne
+ * évince jusqu'à y revenir ; sinon elle retire au plus quelques clés expirées,
+ * si bien qu'aucun appel ne paie un grand nettoyage.
+ */
+final class IdempotencyCache {
+
+    /**
+     * Clés expirées retirées au plus par insertion, tant que la borne est respectée
+     */
+    private static final int EVICTIONS_PER_INSERT = 4;
+
+    /**
+     * @param request empreinte de la requête d'origine (opération, comptes, montant)
+     */
+    private record Entry(String key, String request, CompletableFuture<Object> result, long expiresAt) {
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Ordre d'insertion = ordre d'expiration, la durée de vie étant la même pour toutes
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final int maxKeys;
+    private final long ttlNanos;
+
+    IdempotencyCache(int maxKeys, long ttlSeconds) {
+        if (maxKeys <= 0 || ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Idempotency cache size and ttl must be positive");
+        }
+        this.maxKeys = maxKeys;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * Exécute {@code operation} une seule fois par clé pendant la durée de vie de la clé.
+     * Une requête concurrente avec la même clé attend le résultat de la première.
+     * Un refus métier (IllegalArgumentException) est mémorisé comme un résultat ;
+     * un échec de précondition ({@link VersionConflictException}) ou toute autre erreur
+     * libère la clé pour qu'une nouvelle tentative puisse réussir.
+     * @param request empreinte de la requête : une clé réutilisée pour une autre requête est refusée
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> execute(String key, String request, Supplier<CompletableFuture<T>> operation) {
+        while (true) {
+            long now = System.nanoTime();
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                if (existing.expiresAt - now < 0) {
+                    if (entries.remove(key, existing)) {
+                        size.decrementAndGet();
+                    }
+                    continue;
+                }
+                if (!existing.request.equals(request)) {
+                    throw new IllegalArgumentException("Idempotency key already used for another request");
+                }
+                return (CompletableFuture<T>) existing.result;
+            }
+
+            Entry entry = new Entry(key, request, new CompletableFuture<>(), now + ttlNanos);
+            if (entries.putIfAbsent(key, entry) != null) {
+                continue;
+            }
+            size.incrementAndGet();
+            order.add(entry);
+            evict(now);
+            return run(entry, operation);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> run(Entry entry, Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> result = (CompletableFuture<T>) entry.result;
+        try {
+            operation.get().whenComplete((value, failure) -> {
+                if (failure == null) {
+                    result.complete(value);
+                } else {
+                    forget(entry, failure);
+                    result.completeExceptionally(failure);
+                }
+            });
+        } catch (RuntimeException e) {
+            forget(entry, e);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Libère la clé si l'échec n'est pas un refus métier : une version périmée
+     * n'est pas un résultat, la requête peut être reprise avec la version courante
+     */
+    private void forget(Entry entry, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        boolean refusal = cause instanceof IllegalArgumentException && !(cause instanceof VersionConflictException);
+        if (!refusal && entries.remove(entry.key, entry)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Retire les entrées en tête de file : en trop jusqu'à revenir à la borne, déjà libérées,
+     * et quelques expirées. Un seul thread évince à la fois ; au-delà de la borne, l'insertion
+     * attend son tour, sinon elle n'attend pas.
+     */
+    private void evict(long now) {
+        if (size.get() > maxKeys) {
+            evictionLock.lock();
+        } else if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int expired = 0;
+            while (true) {
+                Entry head = order.peek();
+                if (head == null) {
+                    return;
+                }
+                boolean released = entries.get(head.key) != head;
+                boolean overflow = size.get() > maxKeys;
+                if (!released && !overflow) {
+                    if (head.expiresAt - now >= 0 || expired == EVICTIONS_PER_INSERT) {
+                        return;
+                    }
+                    expired++;
+                }
+                order.poll();
+                if (entries.remove(head.key, head)) {
+                    size.decrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+}
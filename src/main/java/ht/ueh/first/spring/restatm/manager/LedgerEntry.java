@@ -0,0 +1,11 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+/**
+ * Une ligne d'historique produite par une opération : montants en centimes,
+ * horodatage en nanosecondes epoch
+ */
+record LedgerEntry(String accountNumber, TransactionType type, long amount, long balanceAfter,
+                   long timestampNanos) {
+}
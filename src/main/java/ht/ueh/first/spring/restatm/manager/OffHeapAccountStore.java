@@ -0,0 +1,753 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountSnapshot;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.LedgerClock;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Comptes rangés hors du tas Java, dans des segments de mémoire native
+ * (ou projetés depuis un fichier) : le tas et le GC ne grossissent pas avec
+ * le nombre de comptes.
+ *
+ * Chaque compte occupe un emplacement de {@link #SLOT_BYTES} octets, protégé
+ * par un mot de version : pair = libre, impair = verrouillé. Les écritures
+ * prennent le verrou par CAS ; les lectures sont optimistes (seqlock) et
+ * recommencent si la version a changé pendant la lecture.
+ * L'index numéro → emplacement est une table d'entiers à adressage ouvert,
+ * lue sans verrou ; seuls la création, la suppression et le changement de PIN sont sérialisés.
+ * Aucune attente (journalisation) ne se fait sous le verrou d'un emplacement.
+ *
+ * Le fichier éventuel ne sert que d'espace de pagination : l'état est
+ * reconstruit depuis le journal à chaque démarrage.
+ */
+class OffHeapAccountStore implements AccountStore {
+
+    // Disposition d'un emplacement
+    private static final long VERSION = 0;
+    private static final long BALANCE = 8;
+    private static final long TRANSACTION_COUNT = 16;
+    private static final long TOTAL_DEPOSITS = 24;
+    private static final long TOTAL_WITHDRAWALS = 32;
+    private static final long TOTAL_TRANSFERS_IN = 40;
+    private static final long TOTAL_TRANSFERS_OUT = 48;
+    private static final long HASH = 56;
+    // Chaînes : longueur + 1 sur un short (0 = absente), puis le contenu
+    private static final long NUMBER = 64;
+    private static final long PIN = 112;
+    private static final long OWNER = 144;
+    static final int SLOT_BYTES = 256;
+
+    private static final int MAX_NUMBER_CHARS = 23;
+    private static final int MAX_PIN_CHARS = 15;
+    private static final int MAX_OWNER_BYTES = 110;
+
+    // Emplacements alloués par blocs de 4 Mo qui ne bougent jamais
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    private static final long CHUNK_BYTES = (long) CHUNK_SLOTS * SLOT_BYTES;
+
+    // Entrées de l'index : 0 = vide, -1 = supprimée, sinon emplacement + 1
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final int MIN_INDEX_CAPACITY = 1024;
+
+    // Accès atomiques par (segment, offset)
+    private static final VarHandle LONG = ValueLayout.JAVA_LONG.varHandle();
+    private static final VarHandle INT = ValueLayout.JAVA_INT.varHandle();
+
+    private record Index(MemorySegment entries, int mask) {
+    }
+
+    // Mémoire libérée quand le stockage n'est plus référencé
+    private final Arena arena = Arena.ofAuto();
+    private final Path file;
+
+    private volatile MemorySegment[] chunks = new MemorySegment[0];
+    private volatile Index index;
+    private volatile int slotCount;
+    private volatile int size;
+
+    // Création, suppression et changement de PIN
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Protégés par writeLock
+    private int freeHead = -1;
+    private int tombstones;
+
+    /**
+     * @param file fichier projeté en mémoire, ou null pour de la mémoire anonyme
+     */
+    OffHeapAccountStore(Path file) throws IOException {
+        this.file = file;
+        if (file != null) {
+            Files.deleteIfExists(file);
+            Files.createFile(file);
+        }
+        index = newIndex(MIN_INDEX_CAPACITY);
+    }
+
+    @Override
+    public Account get(String accountNumber) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                return null;
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long version = (long) LONG.getAcquire(chunk, base + VERSION);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean matches = matches(chunk, base, accountNumber);
+            String owner = matches ? readBytes(chunk, base + OWNER) : null;
+            String pin = matches ? readChars(chunk, base + PIN) : null;
+            AccountStats stats = matches ? readStats(chunk, base) : null;
+            VarHandle.loadLoadFence();
+            if (chunk.get(ValueLayout.JAVA_LONG, base + VERSION) != version) {
+                continue;
+            }
+            if (!matches) {
+                // Emplacement libéré entre la recherche et la lecture
+                continue;
+            }
+            return new Account(accountNumber, owner, pin, stats);
+        }
+    }
+
+    @Override
+    public boolean contains(String accountNumber) {
+        return stats(accountNumber) != null;
+    }
+
+    @Override
+    public AccountStats stats(String accountNumber) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                return null;
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long version = (long) LONG.getAcquire(chunk, base + VERSION);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean matches = matches(chunk, base, accountNumber);
+            AccountStats stats = matches ? readStats(chunk, base) : null;
+            VarHandle.loadLoadFence();
+            if (chunk.get(ValueLayout.JAVA_LONG, base + VERSION) == version && matches) {
+                return stats;
+            }
+        }
+    }
+
+    /**
+     * Le mot de version de l'emplacement augmente de 2 à chaque écriture : sa moitié compte
+     * les modifications. Un emplacement réutilisé continue de compter depuis son ancien compte.
+     */
+    @Override
+    public long version(String accountNumber) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                return -1;
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long version = (long) LONG.getAcquire(chunk, base + VERSION);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean matches = matches(chunk, base, accountNumber);
+            VarHandle.loadLoadFence();
+            if (chunk.get(ValueLayout.JAVA_LONG, base + VERSION) == version && matches) {
+                return version >>> 1;
+            }
+        }
+    }
+
+    @Override
+    public boolean create(Account account, Runnable journal) {
+        String accountNumber = account.getAccountNumber();
+        byte[] owner = encodeOwner(account.getOwner());
+        checkLengths(accountNumber, account.getPin());
+        int hash = hash(accountNumber);
+        writeLock.lock();
+        try {
+            if (find(accountNumber, hash) >= 0) {
+                return false;
+            }
+            journal.run();
+            insert(accountNumber, hash, owner, account.getPin(), account.stats());
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void restore(String accountNumber, String owner, String pin, AccountStats stats) {
+        byte[] ownerBytes = encodeOwner(owner);
+        checkLengths(accountNumber, pin);
+        int hash = hash(accountNumber);
+        writeLock.lock();
+        try {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                insert(accountNumber, hash, ownerBytes, pin, stats);
+                return;
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long locked = lock(chunk, base);
+            writeStats(chunk, base, stats);
+            writeChars(chunk, base + PIN, pin);
+            writeBytes(chunk, base + OWNER, ownerBytes);
+            unlock(chunk, base, locked);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public AccountStats remove(String accountNumber, Runnable journal) {
+        int hash = hash(accountNumber);
+        writeLock.lock();
+        try {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                return null;
+            }
+            // Hors du verrou de l'emplacement : la journalisation peut attendre
+            journal.run();
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long locked = lock(chunk, base);
+            AccountStats stats = readStats(chunk, base);
+            // Les lecteurs qui tiennent encore l'emplacement verront un numéro différent
+            chunk.set(ValueLayout.JAVA_SHORT, base + NUMBER, (short) 0);
+            chunk.set(ValueLayout.JAVA_LONG, base + BALANCE, freeHead);
+            unlock(chunk, base, locked);
+            Index current = index;
+            INT.setRelease(current.entries(), (long) position(current, slot, hash) << 2, TOMBSTONE);
+            freeHead = slot;
+            tombstones++;
+            size--;
+            return stats;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long apply(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit,
+                      long expectedVersion) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Account not found");
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long locked = lock(chunk, base);
+            if (!matches(chunk, base, accountNumber)) {
+                unlockUnchanged(chunk, base, locked);
+                continue;
+            }
+            long current = (locked - 1) >>> 1;
+            if (expectedVersion != ANY_VERSION && current != expectedVersion) {
+                unlockUnchanged(chunk, base, locked);
+                throw new VersionConflictException(expectedVersion, current);
+            }
+            try {
+                return write(chunk, base, type, amount, 1);
+            } finally {
+                unlock(chunk, base, locked);
+            }
+        }
+    }
+
+    @Override
+    public long debit(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit,
+                      long expectedVersion) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Account not found");
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long locked = lock(chunk, base);
+            if (!matches(chunk, base, accountNumber)) {
+                unlockUnchanged(chunk, base, locked);
+                continue;
+            }
+            // Version vérifiée sous le verrou de l'emplacement : aucun débit ne peut s'intercaler
+            long current = (locked - 1) >>> 1;
+            if (expectedVersion != ANY_VERSION && current != expectedVersion) {
+                unlockUnchanged(chunk, base, locked);
+                throw new VersionConflictException(expectedVersion, current);
+            }
+            if (chunk.get(ValueLayout.JAVA_LONG, base + BALANCE) < amount) {
+                unlockUnchanged(chunk, base, locked);
+                throw new IllegalArgumentException("Insufficient funds");
+            }
+            try {
+                return write(chunk, base, type, amount, 1);
+            } finally {
+                unlock(chunk, base, locked);
+            }
+        }
+    }
+
+    @Override
+    public long revert(String accountNumber, TransactionType type, long amount, LedgerClock.Commit commit) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Account not found");
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long locked = lock(chunk, base);
+            try {
+                if (matches(chunk, base, accountNumber)) {
+                    return write(chunk, base, type, amount, -1);
+                }
+            } finally {
+                unlock(chunk, base, locked);
+            }
+        }
+    }
+
+    @Override
+    public boolean updatePin(String accountNumber, String pin, long expectedVersion, Runnable journal) {
+        if (pin != null && pin.length() > MAX_PIN_CHARS) {
+            throw new IllegalArgumentException("PIN too long");
+        }
+        int hash = hash(accountNumber);
+        // Le verrou d'écriture fige l'emplacement et ordonne le journal ; le verrou
+        // de l'emplacement n'est tenu que le temps de vérifier la version et d'écrire le PIN
+        writeLock.lock();
+        try {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                return false;
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long locked = lock(chunk, base);
+            long current = (locked - 1) >>> 1;
+            if (expectedVersion != ANY_VERSION && current != expectedVersion) {
+                unlockUnchanged(chunk, base, locked);
+                throw new VersionConflictException(expectedVersion, current);
+            }
+            // Le PIN est écrit avant que la nouvelle version ne soit publiée par le déverrouillage
+            writeChars(chunk, base + PIN, pin);
+            unlock(chunk, base, locked);
+            // Comme sur le tas : visible avant d'être durable, journalisé dans l'ordre des changements
+            journal.run();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean verifyPin(String accountNumber, String pin) {
+        int hash = hash(accountNumber);
+        while (true) {
+            int slot = find(accountNumber, hash);
+            if (slot < 0) {
+                return false;
+            }
+            MemorySegment chunk = chunk(slot);
+            long base = base(slot);
+            long version = (long) LONG.getAcquire(chunk, base + VERSION);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            boolean matches = matches(chunk, base, accountNumber);
+            boolean valid = matches && pin != null && equalsChars(chunk, base + PIN, pin);
+            VarHandle.loadLoadFence();
+            if (chunk.get(ValueLayout.JAVA_LONG, base + VERSION) == version && matches) {
+                return valid;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        int count = slotCount;
+        for (int slot = 0; slot < count; slot++) {
+            Account account = read(slot);
+            if (account != null) {
+                action.accept(account);
+            }
+        }
+    }
+
+    @Override
+    public boolean keepsVersions() {
+        return false;
+    }
+
+    /**
+     * Pas de versions hors du tas : la séquence est ignorée et chaque compte est lu dans
+     * son état courant, cohérent pour lui-même. Un virement en cours n'apparaîtrait que
+     * d'un côté : l'appelant tient les verrous de tous les virements pendant le parcours.
+     */
+    @Override
+    public void forEachAt(long sequence, Consumer<AccountSnapshot> action) {
+        forEach(account -> action.accept(
+                AccountSnapshot.of(account.getAccountNumber(), account.getOwner(), account.stats())));
+    }
+
+    /**
+     * Copie cohérente d'un emplacement, ou null s'il est libre
+     */
+    private Account read(int slot) {
+        MemorySegment chunk = chunk(slot);
+        long base = base(slot);
+        while (true) {
+            long version = (long) LONG.getAcquire(chunk, base + VERSION);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            String accountNumber = readChars(chunk, base + NUMBER);
+            String owner = accountNumber == null ? null : readBytes(chunk, base + OWNER);
+            String pin = accountNumber == null ? null : readChars(chunk, base + PIN);
+            AccountStats stats = accountNumber == null ? null : readStats(chunk, base);
+            VarHandle.loadLoadFence();
+            if (chunk.get(ValueLayout.JAVA_LONG, base + VERSION) != version) {
+                continue;
+            }
+            if (accountNumber == null) {
+                return null;
+            }
+            return new Account(accountNumber, owner, pin, stats);
+        }
+    }
+
+    /**
+     * Applique ({@code direction} = 1) ou annule (-1) une transaction, sous le verrou de l'emplacement
+     */
+    private static long write(MemorySegment chunk, long base, TransactionType type, long amount, int direction) {
+        long balance = chunk.get(ValueLayout.JAVA_LONG, base + BALANCE);
+        long total = switch (type) {
+            case DEPOT -> TOTAL_DEPOSITS;
+            case RETRAIT -> TOTAL_WITHDRAWALS;
+            case VIREMENT_CREDIT -> TOTAL_TRANSFERS_IN;
+            case VIREMENT_DEBIT -> TOTAL_TRANSFERS_OUT;
+        };
+        long signed = direction * amount;
+        balance += type == TransactionType.DEPOT || type == TransactionType.VIREMENT_CREDIT ? signed : -signed;
+        chunk.set(ValueLayout.JAVA_LONG, base + BALANCE, balance);
+        chunk.set(ValueLayout.JAVA_LONG, base + TRANSACTION_COUNT,
+                chunk.get(ValueLayout.JAVA_LONG, base + TRANSACTION_COUNT) + direction);
+        chunk.set(ValueLayout.JAVA_LONG, base + total, chunk.get(ValueLayout.JAVA_LONG, base + total) + signed);
+        return balance;
+    }
+
+    // --- Emplacements ---
+
+    private void insert(String accountNumber, int hash, byte[] owner, String pin, AccountStats stats) {
+        if ((size + tombstones + 1) * 2L > index.mask() + 1L) {
+            rehash();
+        }
+        int slot = allocateSlot();
+        MemorySegment chunk = chunk(slot);
+        long base = base(slot);
+        long locked = lock(chunk, base);
+        writeStats(chunk, base, stats);
+        chunk.set(ValueLayout.JAVA_INT, base + HASH, hash);
+        writeChars(chunk, base + NUMBER, accountNumber);
+        writeChars(chunk, base + PIN, pin);
+        writeBytes(chunk, base + OWNER, owner);
+        unlock(chunk, base, locked);
+
+        Index current = index;
+        int i = hash & current.mask();
+        while (true) {
+            int entry = (int) INT.getAcquire(current.entries(), (long) i << 2);
+            if (entry == EMPTY || entry == TOMBSTONE) {
+                if (entry == TOMBSTONE) {
+                    tombstones--;
+                }
+                // Publié une fois l'emplacement complet
+                INT.setRelease(current.entries(), (long) i << 2, slot + 1);
+                break;
+            }
+            i = (i + 1) & current.mask();
+        }
+        size++;
+    }
+
+    private int allocateSlot() {
+        if (freeHead >= 0) {
+            int slot = freeHead;
+            freeHead = (int) chunk(slot).get(ValueLayout.JAVA_LONG, base(slot) + BALANCE);
+            return slot;
+        }
+        int slot = slotCount;
+        if ((slot >>> CHUNK_SHIFT) == chunks.length) {
+            addChunk();
+        }
+        slotCount = slot + 1;
+        return slot;
+    }
+
+    private void addChunk() {
+        MemorySegment[] current = chunks;
+        MemorySegment chunk;
+        if (file == null) {
+            chunk = arena.allocate(CHUNK_BYTES, 64);
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // La projection reste valide après la fermeture du canal
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, current.length * CHUNK_BYTES, CHUNK_BYTES, arena);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot grow account store " + file, e);
+            }
+        }
+        MemorySegment[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = chunk;
+        chunks = grown;
+    }
+
+    private MemorySegment chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    private static long base(int slot) {
+        return (long) (slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES;
+    }
+
+    private static long lock(MemorySegment chunk, long base) {
+        while (true) {
+            long version = (long) LONG.getVolatile(chunk, base + VERSION);
+            if ((version & 1) == 0 && LONG.compareAndSet(chunk, base + VERSION, version, version + 1)) {
+                return version + 1;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void unlock(MemorySegment chunk, long base, long locked) {
+        LONG.setRelease(chunk, base + VERSION, locked + 1);
+    }
+
+    /**
+     * Libère l'emplacement sans rien y avoir écrit : la version redevient celle d'avant le verrou
+     */
+    private static void unlockUnchanged(MemorySegment chunk, long base, long locked) {
+        LONG.setRelease(chunk, base + VERSION, locked - 1);
+    }
+
+    private static AccountStats readStats(MemorySegment chunk, long base) {
+        return new AccountStats(
+                chunk.get(ValueLayout.JAVA_LONG, base + BALANCE),
+                chunk.get(ValueLayout.JAVA_LONG, base + TRANSACTION_COUNT),
+                chunk.get(ValueLayout.JAVA_LONG, base + TOTAL_DEPOSITS),
+                chunk.get(ValueLayout.JAVA_LONG, base + TOTAL_WITHDRAWALS),
+                chunk.get(ValueLayout.JAVA_LONG, base + TOTAL_TRANSFERS_IN),
+                chunk.get(ValueLayout.JAVA_LONG, base + TOTAL_TRANSFERS_OUT));
+    }
+
+    private static void writeStats(MemorySegment chunk, long base, AccountStats stats) {
+        chunk.set(ValueLayout.JAVA_LONG, base + BALANCE, stats.balance());
+        chunk.set(ValueLayout.JAVA_LONG, base + TRANSACTION_COUNT, stats.transactionCount());
+        chunk.set(ValueLayout.JAVA_LONG, base + TOTAL_DEPOSITS, stats.totalDeposits());
+        chunk.set(ValueLayout.JAVA_LONG, base + TOTAL_WITHDRAWALS, stats.totalWithdrawals());
+        chunk.set(ValueLayout.JAVA_LONG, base + TOTAL_TRANSFERS_IN, stats.totalTransfersIn());
+        chunk.set(ValueLayout.JAVA_LONG, base + TOTAL_TRANSFERS_OUT, stats.totalTransfersOut());
+    }
+
+    // --- Chaînes ---
+
+    private static void checkLengths(String accountNumber, String pin) {
+        if (accountNumber.length() > MAX_NUMBER_CHARS) {
+            throw new IllegalArgumentException("Account number too long");
+        }
+        if (pin != null && pin.length() > MAX_PIN_CHARS) {
+            throw new IllegalArgumentException("PIN too long");
+        }
+    }
+
+    private static byte[] encodeOwner(String owner) {
+        if (owner == null) {
+            return null;
+        }
+        byte[] bytes = owner.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_OWNER_BYTES) {
+            throw new IllegalArgumentException("Owner name too long");
+        }
+        return bytes;
+    }
+
+    private static boolean matches(MemorySegment chunk, long base, String accountNumber) {
+        return equalsChars(chunk, base + NUMBER, accountNumber);
+    }
+
+    private static boolean equalsChars(MemorySegment chunk, long offset, String value) {
+        int length = chunk.get(ValueLayout.JAVA_SHORT, offset) - 1;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(ValueLayout.JAVA_CHAR, offset + 2 + 2L * i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeChars(MemorySegment chunk, long offset, String value) {
+        if (value == null) {
+            chunk.set(ValueLayout.JAVA_SHORT, offset, (short) 0);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            chunk.set(ValueLayout.JAVA_CHAR, offset + 2 + 2L * i, value.charAt(i));
+        }
+        chunk.set(ValueLayout.JAVA_SHORT, offset, (short) (value.length() + 1));
+    }
+
+    private static String readChars(MemorySegment chunk, long offset) {
+        int length = chunk.get(ValueLayout.JAVA_SHORT, offset) - 1;
+        if (length < 0 || length > MAX_NUMBER_CHARS) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = chunk.get(ValueLayout.JAVA_CHAR, offset + 2 + 2L * i);
+        }
+        return new String(chars);
+    }
+
+    private static void writeBytes(MemorySegment chunk, long offset, byte[] value) {
+        if (value == null) {
+            chunk.set(ValueLayout.JAVA_SHORT, offset, (short) 0);
+            return;
+        }
+        MemorySegment.copy(value, 0, chunk, ValueLayout.JAVA_BYTE, offset + 2, value.length);
+        chunk.set(ValueLayout.JAVA_SHORT, offset, (short) (value.length + 1));
+    }
+
+    private static String readBytes(MemorySegment chunk, long offset) {
+        int length = chunk.get(ValueLayout.JAVA_SHORT, offset) - 1;
+        if (length < 0 || length > MAX_OWNER_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(chunk, ValueLayout.JAVA_BYTE, offset + 2, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // --- Index ---
+
+    private static int hash(String accountNumber) {
+        int h = accountNumber.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Emplacement du compte selon l'index, à confirmer sous le verrou
+     * ou par la version : l'emplacement a pu être libéré entre-temps
+     */
+    private int find(String accountNumber, int hash) {
+        if (accountNumber.length() > MAX_NUMBER_CHARS) {
+            return -1;
+        }
+        Index current = index;
+        for (int i = hash & current.mask(); ; i = (i + 1) & current.mask()) {
+            int entry = (int) INT.getAcquire(current.entries(), (long) i << 2);
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (entry != TOMBSTONE) {
+                int slot = entry - 1;
+                MemorySegment chunk = chunk(slot);
+                long base = base(slot);
+                if (chunk.get(ValueLayout.JAVA_INT, base + HASH) == hash && matches(chunk, base, accountNumber)) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    /**
+     * Position de l'entrée d'un emplacement dans l'index (appelant synchronisé)
+     */
+    private static int position(Index current, int slot, int hash) {
+        for (int i = hash & current.mask(); ; i = (i + 1) & current.mask()) {
+            if (current.entries().get(ValueLayout.JAVA_INT, (long) i << 2) == slot + 1) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Reconstruit l'index sans entrées supprimées, agrandi si besoin ; les lecteurs
+     * qui parcourent encore l'ancien restent corrects, il n'est plus modifié
+     */
+    private void rehash() {
+        int capacity = MIN_INDEX_CAPACITY;
+        while (capacity < (size + 1) * 4L) {
+            capacity <<= 1;
+        }
+        Index rebuilt = newIndex(capacity);
+        Index current = index;
+        for (int i = 0; i <= current.mask(); i++) {
+            int entry = current.entries().get(ValueLayout.JAVA_INT, (long) i << 2);
+            if (entry != EMPTY && entry != TOMBSTONE) {
+                int slot = entry - 1;
+                int hash = chunk(slot).get(ValueLayout.JAVA_INT, base(slot) + HASH);
+                int j = hash & rebuilt.mask();
+                while (rebuilt.entries().get(ValueLayout.JAVA_INT, (long) j << 2) != EMPTY) {
+                    j = (j + 1) & rebuilt.mask();
+                }
+                rebuilt.entries().set(ValueLayout.JAVA_INT, (long) j << 2, entry);
+            }
+        }
+        tombstones = 0;
+        index = rebuilt;
+    }
+
+    private Index newIndex(int capacity) {
+        return new Index(arena.allocate((long) capacity << 2, 64), capacity - 1);
+    }
+}
@@ -0,0 +1,111 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Table de verrous par bandes, indexée par numéro de compte.
+ * Deux comptes sont toujours verrouillés dans l'ordre croissant de leur bande,
+ * ce qui rend impossible l'interblocage entre A→B et B→A.
+ */
+class StripedLocks {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * Crée une table dimensionnée d'après le nombre de cœurs disponibles
+     */
+    StripedLocks() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    StripedLocks(int minStripes) {
+        int size = Integer.highestOneBit(Math.max(2, minStripes) - 1) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    int stripeOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Verrouille la bande d'une clé
+     */
+    void lock(String key) {
+        stripes[stripeOf(key)].lock();
+    }
+
+    void unlock(String key) {
+        stripes[stripeOf(key)].unlock();
+    }
+
+    /**
+     * Verrouille les bandes des deux clés dans l'ordre global
+     */
+    void lockPair(String first, String second) {
+        int a = stripeOf(first);
+        int b = stripeOf(second);
+        if (a == b) {
+            stripes[a].lock();
+        } else {
+            stripes[Math.min(a, b)].lock();
+            stripes[Math.max(a, b)].lock();
+        }
+    }
+
+    /**
+     * Verrouille les bandes de toutes les clés, dans l'ordre global, une seule fois chacune
+     * @return les bandes prises, à rendre à {@link #unlockAll}
+     */
+    int[] lockAll(Collection<String> keys) {
+        BitSet taken = new BitSet(stripes.length);
+        for (String key : keys) {
+            taken.set(stripeOf(key));
+        }
+        int[] order = taken.stream().toArray();
+        for (int stripe : order) {
+            stripes[stripe].lock();
+        }
+        return order;
+    }
+
+    /**
+     * Verrouille toutes les bandes, dans l'ordre global
+     * @return les bandes prises, à rendre à {@link #unlockAll}
+     */
+    int[] lockEvery() {
+        int[] order = new int[stripes.length];
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            order[stripe] = stripe;
+            stripes[stripe].lock();
+        }
+        return order;
+    }
+
+    void unlockAll(int[] order) {
+        for (int i = order.length - 1; i >= 0; i--) {
+            stripes[order[i]].unlock();
+        }
+    }
+
+    /**
+     * Libère les bandes verrouillées par {@link #lockPair}
+     */
+    void unlockPair(String first, String second) {
+        int a = stripeOf(first);
+        int b = stripeOf(second);
+        if (a == b) {
+            stripes[a].unlock();
+        } else {
+            stripes[Math.max(a, b)].unlock();
+            stripes[Math.min(a, b)].unlock();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.TransactionType;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Journal global des transactions, en ajout seul et sans verrou.
+ * <p>
+ * Le stockage est en colonnes : chaque segment de taille fixe contient des tableaux
+ * primitifs parallèles (clé de compte, code de type, montant, horodatage, solde après).
+ * L'identifiant n'est pas stocké, c'est la position + 1. Une ligne coûte 29 octets ;
+ * les {@link Transaction} ne sont créées qu'à la lecture.
+ * <p>
+ * Les écrivains réservent des positions avec un index de fin atomique, remplissent
+ * les colonnes puis publient la ligne en écrivant l'horodatage en dernier (release).
+ * Les lecteurs parcourent le préfixe stable sans bloquer les écrivains.
+ * <p>
+ * Un segment restauré depuis un instantané ne charge que ses clés de compte ; les
+ * autres colonnes sont lues à la première consultation du segment.
+ */
+class TransactionLog {
+
+    static final int SEGMENT_SHIFT = 14;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // Reconstruction des historiques : tranches de 2048 clés, fenêtres de 16M lignes
+    private static final int REBUILD_BUCKET_SHIFT = 11;
+    private static final int REBUILD_WINDOW = 1 << 24;
+
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private final AtomicLong tail = new AtomicLong();
+    // Répertoire des segments, remplacé par copie quand un segment est ajouté
+    private final AtomicReference<Segment[]> directory = new AtomicReference<>(new Segment[0]);
+
+    // Dictionnaire clé compacte -> numéro de compte
+    private volatile String[] accountNumbers = new String[64];
+    private int accountCount;
+
+    /**
+     * Colonnes d'un segment autres que la clé de compte.
+     * Les horodatages valent 0 tant que la ligne n'est pas publiée.
+     */
+    record Columns(byte[] types, long[] amounts, long[] timestamps, long[] balancesAfter) {
+    }
+
+    private static final class Segment {
+        final int[] accountKeys;
+        private volatile Columns columns;
+        // Lecture des colonnes d'un segment restauré, null une fois chargées
+        private Supplier<Columns> loader;
+
+        Segment() {
+            this.accountKeys = new int[SEGMENT_SIZE];
+            this.columns = new Columns(new byte[SEGMENT_SIZE], new long[SEGMENT_SIZE],
+                    new long[SEGMENT_SIZE], new long[SEGMENT_SIZE]);
+        }
+
+        Segment(int[] accountKeys, Supplier<Columns> loader) {
+            this.accountKeys = accountKeys;
+            this.loader = loader;
+        }
+
+        Columns columns() {
+            Columns loaded = columns;
+            return loaded != null ? loaded : load();
+        }
+
+        private synchronized Columns load() {
+            if (columns == null) {
+                columns = loader.get();
+                loader = null;
+            }
+            return columns;
+        }
+    }
+
+    /**
+     * Attribue une clé compacte à un numéro de compte (une seule fois par compte)
+     */
+    synchronized int registerAccount(String accountNumber) {
+        String[] names = accountNumbers;
+        if (accountCount == names.length) {
+            String[] grown = new String[names.length * 2];
+            System.arraycopy(names, 0, grown, 0, names.length);
+            names = grown;
+        }
+        names[accountCount] = accountNumber;
+        accountNumbers = names;
+        return accountCount++;
+    }
+
+    /**
+     * Nombre de comptes enregistrés dans le dictionnaire
+     */
+    synchronized int accountCount() {
+        return accountCount;
+    }
+
+    /**
+     * Numéro de compte associé à une clé compacte
+     */
+    String accountNumber(int accountKey) {
+        return accountNumbers[accountKey];
+    }
+
+    /**
+     * Nombre de positions réservées
+     */
+    long size() {
+        return tail.get();
+    }
+
+    /**
+     * Réinstalle un segment complet : clés fournies telles quelles (sans copie), autres
+     * colonnes lues par {@code columns} à la première consultation du segment.
+     * Réservé au chargement d'un instantané au démarrage, avant toute autre écriture.
+     */
+    void restoreSegment(int[] accountKeys, Supplier<Columns> columns) {
+        long position = tail.get();
+        if ((position & SEGMENT_MASK) != 0) {
+            throw new IllegalStateException("Segments can only be restored at a segment boundary");
+        }
+        int index = (int) (position >>> SEGMENT_SHIFT);
+        Segment[] segments = directory.get();
+        Segment[] grown = Arrays.copyOf(segments, Math.max(segments.length, index + 1));
+        grown[index] = new Segment(accountKeys, columns);
+        directory.set(grown);
+        tail.set(position + SEGMENT_SIZE);
+    }
+
+    /**
+     * Ajoute une ligne au journal, horodatée en nanosecondes epoch
+     * @return la position de la ligne
+     */
+    long append(int accountKey, TransactionType type, long amount, long balanceAfter, long timestampNanos) {
+        long position = reserve(1);
+        set(position, accountKey, type, amount, balanceAfter, timestampNanos);
+        return position;
+    }
+
+    /**
+     * Réserve {@code count} positions consécutives, à remplir par {@link #set}
+     * @return la première position réservée
+     */
+    long reserve(int count) {
+        long first = tail.getAndAdd(count);
+        long last = first + count - 1;
+        if ((first & SEGMENT_MASK) == 0 || (first >>> SEGMENT_SHIFT) != (last >>> SEGMENT_SHIFT)) {
+            // Le premier écrivain d'un segment crée aussi le suivant, hors du chemin des autres
+            segment(last + SEGMENT_SIZE);
+        }
+        return first;
+    }
+
+    /**
+     * Remplit une position réservée et la publie
+     */
+    void set(long position, int accountKey, TransactionType type, long amount, long balanceAfter,
+             long timestampNanos) {
+        Segment segment = segment(position);
+        Columns columns = segment.columns();
+        int slot = (int) (position & SEGMENT_MASK);
+        segment.accountKeys[slot] = accountKey;
+        columns.types[slot] = (byte) type.ordinal();
+        columns.amounts[slot] = amount;
+        columns.balancesAfter[slot] = balanceAfter;
+        LONGS.setRelease(columns.timestamps, slot, timestampNanos);
+    }
+
+    /**
+     * Transaction publiée à cette position, ou null si elle ne l'est pas encore
+     */
+    Transaction get(long position) {
+        Segment[] segments = directory.get();
+        int index = (int) (position >>> SEGMENT_SHIFT);
+        if (position < 0 || index >= segments.length) {
+            return null;
+        }
+        Segment segment = segments[index];
+        Columns columns = segment.columns();
+        int slot = (int) (position & SEGMENT_MASK);
+        long timestamp = (long) LONGS.getAcquire(columns.timestamps, slot);
+        if (timestamp == 0) {
+            return null;
+        }
+        return new Transaction(
+                String.valueOf(position + 1),
+                accountNumbers[segment.accountKeys[slot]],
+                TransactionType.fromCode(columns.types[slot]).name(),
+                columns.amounts[slot],
+                columns.balancesAfter[slot],
+                LocalDateTime.ofInstant(Instant.ofEpochSecond(0, timestamp), ZONE)
+        );
+    }
+
+    /**
+     * Reconstruit les historiques par compte des {@code count} premières lignes,
+     * indexés par clé compacte (null pour une clé sans ligne).
+     * <p>
+     * Remplir directement un million d'historiques dans l'ordre du journal coûte un
+     * défaut de cache par ligne. Les positions sont d'abord réparties par tranche de
+     * clés (écritures séquentielles), puis chaque tranche remplit ses historiques,
+     * dont l'ensemble tient en cache. Par fenêtres successives, l'ordre des positions
+     * de chaque compte est conservé et la mémoire temporaire reste bornée.
+     */
+    AccountHistory[] rebuildHistories(long count) {
+        int keys = accountCount();
+        AccountHistory[] histories = new AccountHistory[keys];
+        Segment[] segments = directory.get();
+        int buckets = (keys >>> REBUILD_BUCKET_SHIFT) + 1;
+        int[] bucketStart = new int[buckets + 1];
+        int window = (int) Math.min(count, REBUILD_WINDOW);
+        int[] offsets = new int[window];
+        int[] bucketKeys = new int[window];
+        for (long base = 0; base < count; base += window) {
+            int rows = (int) Math.min(window, count - base);
+            Arrays.fill(bucketStart, 0);
+            for (int i = 0; i < rows; i++) {
+                bucketStart[(accountKeyAt(segments, base + i) >>> REBUILD_BUCKET_SHIFT) + 1]++;
+            }
+            for (int b = 0; b < buckets; b++) {
+                bucketStart[b + 1] += bucketStart[b];
+            }
+            int[] next = Arrays.copyOf(bucketStart, buckets);
+            for (int i = 0; i < rows; i++) {
+                int key = accountKeyAt(segments, base + i);
+                int slot = next[key >>> REBUILD_BUCKET_SHIFT]++;
+                offsets[slot] = i;
+                bucketKeys[slot] = key;
+            }
+            for (int slot = 0; slot < rows; slot++) {
+                int key = bucketKeys[slot];
+                AccountHistory history = histories[key];
+                if (history == null) {
+                    history = histories[key] = new AccountHistory(key);
+                }
+                history.add(base + offsets[slot]);
+            }
+        }
+        return histories;
+    }
+
+    /**
+     * Parcourt les colonnes type et montant des {@code count} premières lignes,
+     * sans matérialiser de transaction
+     */
+    void forEachAmount(long count, ObjLongConsumer<TransactionType> action) {
+        Segment[] segments = directory.get();
+        for (long base = 0; base < count; base += SEGMENT_SIZE) {
+            Columns columns = segments[(int) (base >>> SEGMENT_SHIFT)].columns();
+            int rows = (int) Math.min(SEGMENT_SIZE, count - base);
+            for (int slot = 0; slot < rows; slot++) {
+                action.accept(TransactionType.fromCode(columns.types[slot]), columns.amounts[slot]);
+            }
+        }
+    }
+
+    /**
+     * Horodatage en nanosecondes epoch de la ligne, ou 0 si elle n'est pas encore publiée
+     */
+    long timestampNanos(long position) {
+        Segment[] segments = directory.get();
+        int index = (int) (position >>> SEGMENT_SHIFT);
+        if (position < 0 || index >= segments.length) {
+            return 0;
+        }
+        return (long) LONGS.getAcquire(segments[index].columns().timestamps, (int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * Parcourt le préfixe stable du journal en ne matérialisant que les lignes
+     * dont l'horodatage est dans [fromNanos, toNanos[
+     */
+    void forEach(long fromNanos, long toNanos, Consumer<Transaction> action) {
+        long end = tail.get();
+        for (long position = 0; position < end; position++) {
+            long timestamp = timestampNanos(position);
+            if (timestamp == 0) {
+                return;
+            }
+            if (timestamp >= fromNanos && timestamp < toNanos) {
+                action.accept(get(position));
+            }
+        }
+    }
+
+    /**
+     * Parcourt le préfixe stable du journal, dans l'ordre des positions
+     */
+    void forEach(Consumer<Transaction> action) {
+        long end = tail.get();
+        for (long position = 0; position < end; position++) {
+            Transaction transaction = get(position);
+            if (transaction == null) {
+                return;
+            }
+            action.accept(transaction);
+        }
+    }
+
+    /**
+     * Copie le préfixe stable du journal
+     */
+    List<Transaction> toList() {
+        List<Transaction> result = new ArrayList<>();
+        forEach(result::add);
+        return result;
+    }
+
+    /**
+     * Page d'au plus {@code limit} transactions à partir d'une position :
+     * accès direct au segment, coût indépendant de la position
+     */
+    List<Transaction> page(long fromPosition, int limit) {
+        List<Transaction> result = new ArrayList<>(limit);
+        for (long position = Math.max(0, fromPosition); result.size() < limit; position++) {
+            Transaction transaction = get(position);
+            if (transaction == null) {
+                break;
+            }
+            result.add(transaction);
+        }
+        return result;
+    }
+
+    private static int accountKeyAt(Segment[] segments, long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].accountKeys[(int) (position & SEGMENT_MASK)];
+    }
+
+    private Segment segment(long position) {
+        int index = (int) (position >>> SEGMENT_SHIFT);
+        while (true) {
+            Segment[] segments = directory.get();
+            if (index < segments.length) {
+                return segments[index];
+            }
+            Segment[] grown = new Segment[index + 1];
+            System.arraycopy(segments, 0, grown, 0, segments.length);
+            for (int i = segments.length; i <= index; i++) {
+                grown[i] = new Segment();
+            }
+            directory.compareAndSet(segments, grown);
+        }
+    }
+
+    /**
+     * Instant courant en nanosecondes epoch
+     */
+    static long epochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+}
@@ -1,19 +1,191 @@
 package ht.ueh.first.spring.restatm.models;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
 public class Account {
     private String accountNumber;
     private String owner;
-    private double balance;
-    private String pin;
+    // Horloge du stockage qui tient le compte ; null pour une copie détachée
+    private final LedgerClock clock;
+    // Dernière version du solde, des statistiques en centimes et du PIN, remplacée par CAS
+    private final AtomicReference<Version> state = new AtomicReference<>(Version.FIRST);
+
+    /**
+     * Une version immuable de l'état du compte, chaînée aux précédentes
+     * tant qu'une lecture ouverte ({@link LedgerClock#openSnapshot()}) peut en avoir besoin.
+     * Le solde et les statistiques y sont à plat : une écriture n'alloue que la version,
+     * l'{@link AccountStats} n'est construit qu'à la lecture.
+     * <p>
+     * Construite sans effet de bord, pour être rejetée sans conséquence si le CAS échoue :
+     * elle n'est datée qu'une fois posée.
+     */
+    private static final class Version {
+
+        private static final AtomicLongFieldUpdater<Version> SEQUENCE =
+                AtomicLongFieldUpdater.newUpdater(Version.class, "sequence");
+
+        static final Version FIRST = new Version(0, 0, 0, 0, 0, 0, null, 0, null, null, false);
+
+        final long balance;
+        final long transactionCount;
+        final long totalDeposits;
+        final long totalWithdrawals;
+        final long totalTransfersIn;
+        final long totalTransfersOut;
+        final String pin;
+        // Version du compte : +1 à chaque modification
+        final long version;
+        // Séquence de la modification, attribuée une fois la version posée ; 0 tant qu'elle n'est pas datée
+        volatile long sequence;
+        // Validation attendue : celle de la jambe, ou celle encore ouverte d'une jambe en dessous
+        final LedgerClock.Commit commit;
+        // Version précédente ; null pour la première version du compte, ou une fois oubliée
+        volatile Version previous;
+        // Première version du compte : rien en dessous, même une fois previous oublié
+        final boolean first;
+        // Compte supprimé : plus aucune écriture n'est acceptée
+        final boolean retired;
+
+        Version(long balance, long transactionCount, long totalDeposits, long totalWithdrawals,
+                long totalTransfersIn, long totalTransfersOut, String pin, long version,
+                LedgerClock.Commit commit, Version previous, boolean retired) {
+            this.balance = balance;
+            this.transactionCount = transactionCount;
+            this.totalDeposits = totalDeposits;
+            this.totalWithdrawals = totalWithdrawals;
+            this.totalTransfersIn = totalTransfersIn;
+            this.totalTransfersOut = totalTransfersOut;
+            this.pin = pin;
+            this.version = version;
+            this.commit = commit;
+            this.previous = previous;
+            this.first = previous == null;
+            this.retired = retired;
+        }
+
+        AccountStats stats() {
+            return new AccountStats(balance, transactionCount, totalDeposits, totalWithdrawals,
+                    totalTransfersIn, totalTransfersOut);
+        }
+
+        /**
+         * Séquence à laquelle la version devient visible : 0 tant qu'elle n'est pas datée,
+         * {@link Long#MAX_VALUE} tant que sa validation est ouverte
+         */
+        long visibleAt() {
+            long own = sequence;
+            if (own == 0 || commit == null) {
+                return own;
+            }
+            long committed = commit.resolve();
+            return committed == 0 ? Long.MAX_VALUE : Math.max(own, committed);
+        }
+
+        /**
+         * Validation pas encore terminée sous cette version, ou null ; sans l'aider à se terminer
+         */
+        LedgerClock.Commit pending() {
+            LedgerClock.Commit waiting = commit;
+            return waiting != null && !waiting.isCommitted() ? waiting : null;
+        }
+
+        /**
+         * Date la version si personne ne l'a encore fait
+         */
+        void stamp(LedgerClock clock) {
+            if (sequence == 0) {
+                SEQUENCE.compareAndSet(this, 0, clock.next());
+            }
+        }
+
+        /**
+         * Version après une transaction ({@code direction} = 1) ou son annulation (-1),
+         * sans contrôle du solde
+         */
+        Version then(TransactionType type, long amount, int direction, LedgerClock.Commit intent) {
+            checkNotRetired();
+            long delta = direction * amount;
+            long count = transactionCount + direction;
+            return switch (type) {
+                case DEPOT -> then(balance + delta, count, totalDeposits + delta, totalWithdrawals,
+                        totalTransfersIn, totalTransfersOut, pin, intent, false);
+                case RETRAIT -> then(balance - delta, count, totalDeposits, totalWithdrawals + delta,
+                        totalTransfersIn, totalTransfersOut, pin, intent, false);
+                case VIREMENT_CREDIT -> then(balance + delta, count, totalDeposits, totalWithdrawals,
+                        totalTransfersIn + delta, totalTransfersOut, pin, intent, false);
+                case VIREMENT_DEBIT -> then(balance - delta, count, totalDeposits, totalWithdrawals,
+                        totalTransfersIn, totalTransfersOut + delta, pin, intent, false);
+            };
+        }
+
+        /**
+         * Même solde et statistiques, PIN remplacé
+         */
+        Version withPin(String nextPin) {
+            checkNotRetired();
+            return then(balance, transactionCount, totalDeposits, totalWithdrawals,
+                    totalTransfersIn, totalTransfersOut, nextPin, null, false);
+        }
+
+        /**
+         * Dernière version du compte supprimé, mêmes solde et statistiques ;
+         * une lecture à une séquence postérieure ne voit plus le compte
+         */
+        Version retire() {
+            checkNotRetired();
+            return then(balance, transactionCount, totalDeposits, totalWithdrawals,
+                    totalTransfersIn, totalTransfersOut, pin, null, true);
+        }
+
+        void checkNotRetired() {
+            if (retired) {
+                throw new IllegalArgumentException("Account not found");
+            }
+        }
+
+        /**
+         * Nouvelle version posée sur celle-ci, pas encore datée ; une écriture simple
+         * devient visible avec la validation encore ouverte en dessous, une jambe avec la sienne
+         * @param intent validation de l'opération sur plusieurs comptes, ou null
+         */
+        private Version then(long nextBalance, long nextCount, long nextDeposits, long nextWithdrawals,
+                             long nextTransfersIn, long nextTransfersOut, String nextPin,
+                             LedgerClock.Commit intent, boolean nextRetired) {
+            return new Version(nextBalance, nextCount, nextDeposits, nextWithdrawals, nextTransfersIn,
+                    nextTransfersOut, nextPin, version + 1, intent == null ? pending() : intent, this,
+                    nextRetired);
+        }
+    }
 
     public Account() {
+        this.clock = null;
     }
 
     public Account(String accountNumber, String owner, double balance, String pin) {
+        this(accountNumber, owner, pin, AccountStats.EMPTY.withBalance(Money.toCents(balance)));
+    }
+
+    /**
+     * Copie détachée dans un état donné (corps de requête, réponse, copie hors stockage)
+     */
+    public Account(String accountNumber, String owner, String pin, AccountStats stats) {
+        this(null, accountNumber, owner, pin, stats);
+    }
+
+    /**
+     * Compte tenu par un stockage, dans un état donné, sur l'horloge du stockage.
+     * Sa première version n'est pas encore datée : le stockage appelle {@link #markVisible()}
+     * au moment où il le publie.
+     */
+    public Account(LedgerClock clock, String accountNumber, String owner, String pin, AccountStats stats) {
+        this.clock = clock;
         this.accountNumber = accountNumber;
         this.owner = owner;
-        this.balance = balance;
-        this.pin = pin;
+        state.set(new Version(stats.balance(), stats.transactionCount(), stats.totalDeposits(),
+                stats.totalWithdrawals(), stats.totalTransfersIn(), stats.totalTransfersOut(), pin,
+                1, null, null, false));
     }
 
     public String getAccountNumber() {
@@ -33,19 +205,256 @@ public class Account {
     }
 
     public double getBalance() {
-        return balance;
+        return Money.toAmount(state.get().balance);
+    }
+
+    /**
+     * Solde d'un compte lu dans le corps d'une requête, avant sa création ; privé : seul Jackson l'utilise
+     */
+    private void setBalance(double balance) {
+        long cents = Money.toCents(balance);
+        update(current -> current.then(cents, current.transactionCount, current.totalDeposits,
+                current.totalWithdrawals, current.totalTransfersIn, current.totalTransfersOut, current.pin,
+                null, false));
+    }
+
+    /**
+     * Solde courant en centimes
+     */
+    public long balanceCents() {
+        return state.get().balance;
+    }
+
+    /**
+     * Version du compte, augmentée à chaque modification (solde ou PIN)
+     */
+    public long version() {
+        return state.get().version;
+    }
+
+    /**
+     * Solde et statistiques courants, lus ensemble
+     */
+    public AccountStats stats() {
+        return state.get().stats();
+    }
+
+    /**
+     * Date la première version du compte : il devient visible aux lectures ouvertes
+     * à partir de maintenant. Appelé par le stockage au moment où il publie le compte.
+     */
+    public void markVisible() {
+        stamp(state.get());
     }
 
-    public void setBalance(double balance) {
-        this.balance = balance;
+    /**
+     * Solde et statistiques tels qu'ils étaient à la séquence d'une lecture ouverte
+     * par {@link LedgerClock#openSnapshot()}. Sans verrou et sans attente : une version
+     * pas encore datée l'est ici, donc après la lecture, et une jambe encore ouverte
+     * n'est pas visible.
+     * @return null si le compte n'existait pas encore, ou plus, à cette séquence
+     */
+    public AccountStats statsAt(long sequence) {
+        Version version = state.get();
+        while (true) {
+            stamp(version);
+            if (version.visibleAt() <= sequence) {
+                return version.retired ? null : version.stats();
+            }
+            Version previous = version.previous;
+            if (previous == null) {
+                if (version.first) {
+                    return null;
+                }
+                // Impossible tant que la lecture est ouverte : voir published()
+                throw new IllegalStateException("Account version no longer available");
+            }
+            version = previous;
+        }
+    }
+
+    /**
+     * Applique une transaction de façon atomique, sans contrôle du solde
+     * (crédits, et relecture du journal au démarrage)
+     * @return le solde en centimes après l'opération
+     */
+    public long apply(TransactionType type, long cents) {
+        return apply(type, cents, null);
+    }
+
+    /**
+     * @param commit validation de l'opération sur plusieurs comptes dont c'est une jambe, ou null
+     */
+    public long apply(TransactionType type, long cents, LedgerClock.Commit commit) {
+        return update(current -> current.then(type, cents, 1, commit)).balance;
+    }
+
+    /**
+     * Crédit conditionnel (compare-and-set) : la version et le crédit sont vérifiés
+     * et appliqués dans le même CAS, sans verrou
+     * @param expectedVersion version que le compte doit avoir, ou une valeur négative pour ne pas la vérifier
+     * @throws VersionConflictException si le compte n'est plus à cette version
+     */
+    public long apply(TransactionType type, long cents, LedgerClock.Commit commit, long expectedVersion) {
+        if (expectedVersion < 0) {
+            return apply(type, cents, commit);
+        }
+        return update(current -> {
+            if (current.version != expectedVersion) {
+                throw new VersionConflictException(expectedVersion, current.version);
+            }
+            return current.then(type, cents, 1, commit);
+        }).balance;
+    }
+
+    /**
+     * Annule une transaction appliquée par {@link #apply} ou {@link #debit}
+     * (lot tout-ou-rien interrompu)
+     * @return le solde en centimes après l'annulation
+     */
+    public long revert(TransactionType type, long cents) {
+        return revert(type, cents, null);
+    }
+
+    public long revert(TransactionType type, long cents, LedgerClock.Commit commit) {
+        return update(current -> current.then(type, cents, -1, commit)).balance;
+    }
+
+    /**
+     * Crédite le compte de façon atomique
+     * @return le solde en centimes après l'opération
+     */
+    public long credit(TransactionType type, long cents) {
+        return apply(type, cents);
+    }
+
+    /**
+     * Débite le compte de façon atomique : la vérification du solde, le débit
+     * et la mise à jour des statistiques se font dans le même CAS
+     * @return le solde en centimes après l'opération
+     */
+    public long debit(TransactionType type, long cents) {
+        return debit(type, cents, null);
+    }
+
+    public long debit(TransactionType type, long cents, LedgerClock.Commit commit) {
+        return debit(type, cents, commit, -1);
+    }
+
+    /**
+     * Débit conditionnel (compare-and-set) : la version, le solde et le débit sont
+     * vérifiés et appliqués dans le même CAS, sans verrou
+     * @param expectedVersion version que le compte doit avoir, ou une valeur négative pour ne pas la vérifier
+     * @throws VersionConflictException si le compte n'est plus à cette version
+     */
+    public long debit(TransactionType type, long cents, LedgerClock.Commit commit, long expectedVersion) {
+        Version current;
+        Version next;
+        do {
+            current = state.get();
+            if (expectedVersion >= 0 && current.version != expectedVersion) {
+                throw new VersionConflictException(expectedVersion, current.version);
+            }
+            current.checkNotRetired();
+            if (current.balance < cents) {
+                throw new IllegalArgumentException("Insufficient funds");
+            }
+            next = current.then(type, cents, 1, commit);
+        } while (!state.compareAndSet(current, next));
+        published(current, next);
+        return next.balance;
+    }
+
+    /**
+     * Fige le compte supprimé : les écritures encore en cours échouent désormais
+     * ({@code Account not found}), et le solde rendu compte toutes celles qui ont réussi
+     * @return solde et statistiques définitifs
+     */
+    public AccountStats retire() {
+        return update(Version::retire).stats();
     }
 
     public String getPin() {
-        return pin;
+        return state.get().pin;
     }
 
     public void setPin(String pin) {
-        this.pin = pin;
+        setPin(pin, -1);
+    }
+
+    /**
+     * Change le PIN si le compte est encore à la version attendue (compare-and-set, sans verrou)
+     * @param expectedVersion version que le compte doit avoir, ou une valeur négative pour ne pas la vérifier
+     * @throws VersionConflictException si le compte n'est plus à cette version
+     */
+    public void setPin(String pin, long expectedVersion) {
+        Version current;
+        Version next;
+        do {
+            current = state.get();
+            if (expectedVersion >= 0 && current.version != expectedVersion) {
+                throw new VersionConflictException(expectedVersion, current.version);
+            }
+            next = current.withPin(pin);
+        } while (!state.compareAndSet(current, next));
+        published(current, next);
+    }
+
+    /**
+     * Pose par CAS la version calculée à partir de la version courante, puis la publie
+     */
+    private Version update(UnaryOperator<Version> change) {
+        Version current;
+        Version next;
+        do {
+            current = state.get();
+            next = change.apply(current);
+        } while (!state.compareAndSet(current, next));
+        published(current, next);
+        return next;
     }
-}
 
+    /**
+     * Suites d'une version posée sur {@code current}, faites une seule fois, après le CAS :
+     * la version est datée, et les versions que plus aucune lecture n'atteint sont oubliées.
+     * <p>
+     * Les séquences visibles croissent le long de la chaîne : une lecture à S s'arrête
+     * à la première version visible à S en partant du haut. Une fois {@code current}
+     * visible à V, une lecture à S &gt;= V ne descend pas en dessous ; or toute lecture
+     * ouverte a une séquence d'au moins {@code oldestReader}, et une lecture qui s'ouvre
+     * après la lecture d'{@code oldestReader} prend une séquence d'au moins V
+     * (voir {@link LedgerClock#openSnapshot()}). Oublier ce qui est sous {@code current}
+     * ne coupe donc jamais une version dont une lecture ouverte a besoin.
+     */
+    private void published(Version current, Version next) {
+        if (clock == null) {
+            // Copie détachée : personne ne la lit à une séquence
+            current.previous = null;
+            return;
+        }
+        stamp(next);
+        long visibleAt = current.visibleAt();
+        if (visibleAt != 0 && visibleAt <= clock.oldestReader()) {
+            // Aucune lecture ouverte ne remonte plus loin que cette version
+            current.previous = null;
+        }
+    }
+
+    /**
+     * Date la version et, d'abord, les précédentes encore sans date : les séquences
+     * croissent le long de la chaîne même quand une écriture plus ancienne tarde à dater la sienne
+     */
+    private void stamp(Version version) {
+        if (clock == null) {
+            return;
+        }
+        while (version.sequence == 0) {
+            Version oldest = version;
+            Version previous;
+            while ((previous = oldest.previous) != null && previous.sequence == 0) {
+                oldest = previous;
+            }
+            oldest.stamp(clock);
+        }
+    }
+}
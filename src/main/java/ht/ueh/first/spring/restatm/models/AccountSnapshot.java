@@ -0,0 +1,13 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * Copie immuable d'un compte à une séquence du registre, sans PIN
+ *
+ * @param balance solde en unités monétaires
+ */
+public record AccountSnapshot(String accountNumber, String owner, double balance, long transactionCount) {
+
+    public static AccountSnapshot of(String accountNumber, String owner, AccountStats stats) {
+        return new AccountSnapshot(accountNumber, owner, Money.toAmount(stats.balance()), stats.transactionCount());
+    }
+}
@@ -0,0 +1,52 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * État d'un compte à un instant donné : solde et statistiques cumulées, en centimes.
+ * Immuable : chaque opération produit un nouvel état, publié par un seul CAS,
+ * si bien que le solde et les statistiques lus ensemble sont toujours cohérents.
+ */
+public record AccountStats(long balance, long transactionCount, long totalDeposits, long totalWithdrawals,
+                           long totalTransfersIn, long totalTransfersOut) {
+
+    public static final AccountStats EMPTY = new AccountStats(0, 0, 0, 0, 0, 0);
+
+    /**
+     * Même historique, solde remplacé
+     */
+    public AccountStats withBalance(long balance) {
+        return new AccountStats(balance, transactionCount, totalDeposits, totalWithdrawals,
+                totalTransfersIn, totalTransfersOut);
+    }
+
+    /**
+     * État après une transaction, sans contrôle du solde
+     */
+    public AccountStats apply(TransactionType type, long amount) {
+        return switch (type) {
+            case DEPOT -> new AccountStats(balance + amount, transactionCount + 1,
+                    totalDeposits + amount, totalWithdrawals, totalTransfersIn, totalTransfersOut);
+            case RETRAIT -> new AccountStats(balance - amount, transactionCount + 1,
+                    totalDeposits, totalWithdrawals + amount, totalTransfersIn, totalTransfersOut);
+            case VIREMENT_CREDIT -> new AccountStats(balance + amount, transactionCount + 1,
+                    totalDeposits, totalWithdrawals, totalTransfersIn + amount, totalTransfersOut);
+            case VIREMENT_DEBIT -> new AccountStats(balance - amount, transactionCount + 1,
+                    totalDeposits, totalWithdrawals, totalTransfersIn, totalTransfersOut + amount);
+        };
+    }
+
+    /**
+     * État avant une transaction : annule exactement {@link #apply}
+     */
+    public AccountStats revert(TransactionType type, long amount) {
+        return switch (type) {
+            case DEPOT -> new AccountStats(balance - amount, transactionCount - 1,
+                    totalDeposits - amount, totalWithdrawals, totalTransfersIn, totalTransfersOut);
+            case RETRAIT -> new AccountStats(balance + amount, transactionCount - 1,
+                    totalDeposits, totalWithdrawals - amount, totalTransfersIn, totalTransfersOut);
+            case VIREMENT_CREDIT -> new AccountStats(balance - amount, transactionCount - 1,
+                    totalDeposits, totalWithdrawals, totalTransfersIn - amount, totalTransfersOut);
+            case VIREMENT_DEBIT -> new AccountStats(balance + amount, transactionCount - 1,
+                    totalDeposits, totalWithdrawals, totalTransfersIn, totalTransfersOut - amount);
+        };
+    }
+}
@@ -0,0 +1,16 @@
+package ht.ueh.first.spring.restatm.models;
+
+import java.util.Map;
+
+/**
+ * Totaux de la banque à un instant donné, montants en centimes.
+ * Chaque compteur est exact, mais ils sont lus l'un après l'autre sans verrou :
+ * pendant des opérations concurrentes, deux compteurs peuvent refléter quelques
+ * opérations d'écart.
+ *
+ * @param countsByType nombre de transactions par type (libellé du type)
+ * @param transferVolume montant total des virements (compté une fois par virement)
+ */
+public record BankAggregates(Map<String, Long> countsByType, long depositTotal, long withdrawalTotal,
+                             long transferVolume, long totalMoney, long accountCount) {
+}
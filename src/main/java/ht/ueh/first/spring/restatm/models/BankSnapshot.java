@@ -0,0 +1,13 @@
+package ht.ueh.first.spring.restatm.models;
+
+import java.util.List;
+
+/**
+ * Tous les comptes tels qu'ils étaient à une même séquence du registre :
+ * un virement y apparaît des deux côtés ou pas du tout.
+ *
+ * @param sequence séquence du registre ({@link LedgerClock}) à laquelle les comptes sont lus
+ * @param totalMoney somme des soldes, en unités monétaires comme les soldes des comptes
+ */
+public record BankSnapshot(long sequence, double totalMoney, List<AccountSnapshot> accounts) {
+}
@@ -0,0 +1,29 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * Résultat d'une opération d'un lot, à la même position que l'opération
+ *
+ * @param message raison de l'échec, null si l'opération a réussi
+ * @param balance solde du compte {@code accountNumber} après l'opération, null si elle n'a pas été appliquée
+ */
+public record BatchItemResult(int index, Status status, String message, Double balance) {
+
+    public enum Status {
+        OK,
+        FAILED,
+        /** Opération valide, annulée parce qu'une autre opération d'un lot tout-ou-rien a échoué */
+        ROLLED_BACK
+    }
+
+    public static BatchItemResult ok(int index, long balance) {
+        return new BatchItemResult(index, Status.OK, null, Money.toAmount(balance));
+    }
+
+    public static BatchItemResult failed(int index, String message) {
+        return new BatchItemResult(index, Status.FAILED, message, null);
+    }
+
+    public static BatchItemResult rolledBack(int index) {
+        return new BatchItemResult(index, Status.ROLLED_BACK, null, null);
+    }
+}
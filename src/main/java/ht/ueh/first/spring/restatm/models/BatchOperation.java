@@ -0,0 +1,14 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * Une opération d'un lot : dépôt ou retrait sur {@code accountNumber},
+ * ou virement de {@code accountNumber} vers {@code toAccount}
+ */
+public record BatchOperation(Type type, String accountNumber, String toAccount, double amount) {
+
+    public enum Type {
+        DEPOT,
+        RETRAIT,
+        VIREMENT
+    }
+}
@@ -0,0 +1,158 @@
+package ht.ueh.first.spring.restatm.models;
+
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Horloge des versions de comptes (MVCC) : chaque modification d'un compte reçoit
+ * une séquence croissante, et une lecture à la séquence S voit exactement les
+ * modifications de séquence inférieure ou égale à S.
+ * <p>
+ * Une opération sur plusieurs comptes (virement, lot) pose ses versions en attente
+ * d'un {@link Commit}, puis les valide d'un coup : elles prennent toutes la même
+ * séquence, et une lecture voit toutes les jambes ou aucune. L'opération tient les
+ * verrous de tous ses comptes jusqu'à la validation : une version n'attend jamais
+ * qu'une seule validation, celle de sa propre opération.
+ * <p>
+ * Une lecture n'attend jamais une écriture : une jambe encore ouverte est invisible
+ * (sa séquence sera plus grande que celle de la lecture), et une validation en cours
+ * est terminée par la lecture qui la croise.
+ * <p>
+ * Une horloge par gestionnaire : ses comptes, ses lectures et ses validations
+ * ne voient pas ceux d'un autre gestionnaire.
+ */
+public final class LedgerClock {
+
+    private final AtomicLong clock = new AtomicLong();
+    // Nombre de lectures ouvertes par séquence, sous readersLock
+    private final TreeMap<Long, Integer> readers = new TreeMap<>();
+    private final ReentrantLock readersLock = new ReentrantLock();
+    // Plus ancienne séquence lue : les versions plus anciennes ne servent plus à personne.
+    // Écrite sous readersLock seulement ; jamais plus grande qu'une lecture ouverte ou en cours d'ouverture
+    private volatile long oldestReader = Long.MAX_VALUE;
+
+    /**
+     * Dernière séquence attribuée
+     */
+    public long current() {
+        return clock.get();
+    }
+
+    long next() {
+        return clock.incrementAndGet();
+    }
+
+    long oldestReader() {
+        return oldestReader;
+    }
+
+    /**
+     * Ouvre une lecture à la séquence courante ; les versions dont elle a besoin sont
+     * gardées jusqu'à sa fermeture. Le verrou n'est partagé qu'avec les autres lectures.
+     */
+    public Snapshot openSnapshot() {
+        readersLock.lock();
+        try {
+            // Annoncée avant que la séquence ne soit lue : une écriture qui n'a pas vu l'annonce
+            // n'oublie que des versions plus anciennes que toute séquence lue ensuite
+            oldestReader = Math.min(oldestReader, clock.get());
+            long sequence = clock.get();
+            readers.merge(sequence, 1, Integer::sum);
+            oldestReader = readers.firstKey();
+            return new Snapshot(sequence);
+        } finally {
+            readersLock.unlock();
+        }
+    }
+
+    /**
+     * Ouvre la validation d'une opération sur plusieurs comptes
+     */
+    public Commit begin() {
+        return new Commit();
+    }
+
+    /**
+     * Une lecture ouverte à une séquence fixe
+     */
+    public final class Snapshot implements AutoCloseable {
+
+        private final long sequence;
+        private boolean closed;
+
+        private Snapshot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        public long sequence() {
+            return sequence;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            readersLock.lock();
+            try {
+                readers.computeIfPresent(sequence, (key, count) -> count == 1 ? null : count - 1);
+                oldestReader = readers.isEmpty() ? Long.MAX_VALUE : readers.firstKey();
+            } finally {
+                readersLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Validation commune aux jambes d'une opération sur plusieurs comptes.
+     * Toujours validée une fois les jambes posées, même en cas d'échec : une version
+     * restée en attente resterait invisible aux lectures.
+     */
+    public final class Commit {
+
+        private static final AtomicLongFieldUpdater<Commit> SEQUENCE =
+                AtomicLongFieldUpdater.newUpdater(Commit.class, "sequence");
+
+        private static final long OPEN = 0;
+        // Validation commencée, séquence pas encore attribuée
+        private static final long CLOSING = -1;
+
+        // OPEN, CLOSING, puis la séquence de la validation
+        private volatile long sequence = OPEN;
+
+        private Commit() {
+        }
+
+        /**
+         * Valide l'opération : la séquence est prise après l'annonce de la validation,
+         * donc après celle de toute lecture qui a encore vu l'opération ouverte
+         */
+        public void commit() {
+            sequence = CLOSING;
+            resolve();
+        }
+
+        /**
+         * Séquence déjà attribuée à la validation
+         */
+        boolean isCommitted() {
+            return sequence > 0;
+        }
+
+        /**
+         * Séquence de la validation, ou 0 tant que l'opération est ouverte ;
+         * une validation commencée est terminée ici plutôt qu'attendue
+         */
+        long resolve() {
+            long current = sequence;
+            if (current == CLOSING) {
+                SEQUENCE.compareAndSet(this, CLOSING, next());
+                current = sequence;
+            }
+            return current;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * Conversion entre les montants décimaux du JSON et les centimes
+ * utilisés en interne (entiers {@code long}, sans arrondi cumulé)
+ */
+public final class Money {
+
+    private static final double MAX_AMOUNT = Long.MAX_VALUE / 100.0;
+
+    private Money() {
+    }
+
+    /**
+     * Convertit un montant décimal en centimes, arrondi au centime le plus proche
+     */
+    public static long toCents(double amount) {
+        if (Double.isNaN(amount) || Math.abs(amount) >= MAX_AMOUNT) {
+            throw new IllegalArgumentException("Invalid amount");
+        }
+        return Math.round(amount * 100);
+    }
+
+    /**
+     * Convertit des centimes en montant décimal pour l'affichage JSON
+     */
+    public static double toAmount(long cents) {
+        return cents / 100.0;
+    }
+}
@@ -6,20 +6,22 @@ public class Transaction {
     private String id;
     private String accountNumber;
     private String type;
-    private double amount;
+    // Montants en centimes
+    private long amount;
     private LocalDateTime timestamp;
-    private double balanceAfter;
+    private long balanceAfter;
 
     public Transaction() {
     }
 
-    public Transaction(String id, String accountNumber, String type, double amount, double balanceAfter) {
+    public Transaction(String id, String accountNumber, String type, long amount, long balanceAfter,
+                       LocalDateTime timestamp) {
         this.id = id;
         this.accountNumber = accountNumber;
         this.type = type;
         this.amount = amount;
         this.balanceAfter = balanceAfter;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
     }
 
 
@@ -49,11 +51,15 @@ public class Transaction {
     }
 
     public double getAmount() {
-        return amount;
+        return Money.toAmount(amount);
     }
 
     public void setAmount(double amount) {
-        this.amount = amount;
+        this.amount = Money.toCents(amount);
+    }
+
+    public long amountCents() {
+        return amount;
     }
 
     public LocalDateTime getTimestamp() {
@@ -65,11 +71,15 @@ public class Transaction {
     }
 
     public double getBalanceAfter() {
-        return balanceAfter;
+        return Money.toAmount(balanceAfter);
     }
 
     public void setBalanceAfter(double balanceAfter) {
-        this.balanceAfter = balanceAfter;
+        this.balanceAfter = Money.toCents(balanceAfter);
+    }
+
+    public long balanceAfterCents() {
+        return balanceAfter;
     }
 }
 
@@ -0,0 +1,20 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * Types de transaction ; le nom de la constante est le libellé exposé dans le JSON
+ */
+public enum TransactionType {
+    DEPOT,
+    RETRAIT,
+    VIREMENT_DEBIT,
+    VIREMENT_CREDIT;
+
+    private static final TransactionType[] VALUES = values();
+
+    /**
+     * Type correspondant à un code compact (son ordinal)
+     */
+    public static TransactionType fromCode(int code) {
+        return VALUES[code];
+    }
+}
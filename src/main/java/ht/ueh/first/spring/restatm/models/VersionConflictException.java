@@ -0,0 +1,27 @@
+package ht.ueh.first.spring.restatm.models;
+
+/**
+ * Opération conditionnelle refusée : le compte n'est plus à la version attendue
+ * (modifié depuis que le client l'a lu). Rien n'a été modifié.
+ */
+public class VersionConflictException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long expectedVersion;
+    private final long currentVersion;
+
+    public VersionConflictException(long expectedVersion, long currentVersion) {
+        super("Account version changed");
+        this.expectedVersion = expectedVersion;
+        this.currentVersion = currentVersion;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public long getCurrentVersion() {
+        return currentVersion;
+    }
+}
@@ -0,0 +1,209 @@
+package ht.ueh.first.spring.restatm.controllers;
+
+import ht.ueh.first.spring.restatm.manager.ReactiveAtmManager;
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Édition réactive de l'API ATM, construite avec le profil Maven {@code reactive} et
+ * active seulement quand l'application démarre en mode WebFlux
+ * ({@code spring.main.web-application-type=reactive}).
+ * Aucun thread n'est bloqué pendant l'attente du journal ; l'historique est
+ * émis au fil de la demande du client.
+ */
+@RestController
+@RequestMapping("/api/reactive/atm")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveAtmController {
+
+    private final ReactiveAtmManager atmManager;
+
+    public ReactiveAtmController(ReactiveAtmManager atmManager) {
+        this.atmManager = atmManager;
+    }
+
+    /**
+     * Liste de tous les comptes
+     */
+    @GetMapping("/accounts")
+    public Flux<Account> getAllAccounts() {
+        return atmManager.getAllAccounts();
+    }
+
+    /**
+     * Détails d'un compte ; ETag = version du compte, 304 sans corps si If-None-Match est inchangé
+     */
+    @GetMapping("/accounts/{accountNumber}")
+    public Mono<ResponseEntity<Account>> getAccount(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        // Version lue avant le compte : la réponse n'est jamais plus ancienne que son ETag
+        return atmManager.getVersion(accountNumber)
+                .flatMap(version -> {
+                    String etag = ETags.account(version);
+                    if (ETags.matches(ifNoneMatch, etag)) {
+                        return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).<Account>build());
+                    }
+                    return atmManager.getAccount(accountNumber)
+                            .map(account -> ResponseEntity.ok().eTag(etag).body(account));
+                })
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Création d'un compte
+     */
+    @PostMapping("/accounts")
+    public Mono<ResponseEntity<Account>> createAccount(@RequestBody Account account) {
+        return atmManager.createAccount(account)
+                .map(ResponseEntity::ok)
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    /**
+     * Solde d'un compte ; même ETag que le compte
+     */
+    @GetMapping("/accounts/{accountNumber}/balance")
+    public Mono<ResponseEntity<Map<String, Object>>> getBalance(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return atmManager.getVersion(accountNumber)
+                .flatMap(version -> {
+                    String etag = ETags.account(version);
+                    if (ETags.matches(ifNoneMatch, etag)) {
+                        return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag)
+                                .<Map<String, Object>>build());
+                    }
+                    return atmManager.getBalance(accountNumber)
+                            .map(balance -> {
+                                Map<String, Object> response = new HashMap<>();
+                                response.put("accountNumber", accountNumber);
+                                response.put("balance", balance);
+                                return ResponseEntity.ok().eTag(etag).body(response);
+                            });
+                })
+                .defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.notFound().build()));
+    }
+
+    /**
+     * Dépôt ; rejoué avec le même en-tête Idempotency-Key, retourne le résultat d'origine.
+     * Avec If-Match (ETag du compte), 412 si le compte a changé depuis
+     */
+    @PostMapping("/accounts/{accountNumber}/deposit")
+    public Mono<ResponseEntity<Account>> deposit(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Double> request) {
+
+        Double amount = request.get("amount");
+        if (amount == null || amount <= 0) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return atmManager.deposit(accountNumber, amount, ETags.expectedVersion(ifMatch), idempotencyKey)
+                .map(ResponseEntity::ok)
+                .onErrorResume(VersionConflictException.class, e ->
+                        Mono.just(ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build()))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.notFound().build()));
+    }
+
+    /**
+     * Retrait ; rejoué avec le même en-tête Idempotency-Key, retourne le résultat d'origine.
+     * Avec If-Match (ETag du compte), 412 sans débit si le compte a changé depuis
+     */
+    @PostMapping("/accounts/{accountNumber}/withdraw")
+    public Mono<ResponseEntity<Account>> withdraw(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Double> request) {
+
+        Double amount = request.get("amount");
+        if (amount == null || amount <= 0) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return atmManager.withdraw(accountNumber, amount, ETags.expectedVersion(ifMatch), idempotencyKey)
+                .map(ResponseEntity::ok)
+                .onErrorResume(VersionConflictException.class, e ->
+                        Mono.just(ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build()))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().build()));
+    }
+
+    /**
+     * Virement ; rejoué avec le même en-tête Idempotency-Key, retourne le résultat d'origine.
+     * Avec If-Match (ETag du compte source), 412 si ce compte a changé depuis
+     */
+    @PostMapping("/transfer")
+    public Mono<ResponseEntity<Map<String, String>>> transfer(
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, Object> request) {
+        String from = (String) request.get("from");
+        String to = (String) request.get("to");
+        Object amount = request.get("amount");
+        if (from == null || to == null || !(amount instanceof Number number)) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return atmManager.transfer(from, to, number.doubleValue(), ETags.expectedVersion(ifMatch), idempotencyKey)
+                .then(Mono.fromSupplier(() -> ResponseEntity.ok(Map.of("message", "Virement effectué avec succès"))))
+                .onErrorResume(VersionConflictException.class, e -> Mono.just(
+                        ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).body(Map.of("message", e.getMessage()))))
+                .onErrorResume(IllegalArgumentException.class, e ->
+                        Mono.just(ResponseEntity.badRequest().body(Map.of("message", e.getMessage()))));
+    }
+
+    /**
+     * Modifie le PIN : { "oldPin": "1234", "newPin": "5678" } ; 403 si l'ancien PIN est faux.
+     * Avec If-Match (ETag du compte), 412 si le compte a changé depuis
+     */
+    @PutMapping("/accounts/{accountNumber}/pin")
+    public Mono<ResponseEntity<Map<String, String>>> updatePin(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-Match", required = false) String ifMatch,
+            @RequestBody Map<String, String> request) {
+        String newPin = request.get("newPin");
+        if (newPin == null || newPin.isBlank()) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        long expectedVersion = ETags.expectedVersion(ifMatch);
+        return atmManager.getVersion(accountNumber)
+                .flatMap(version -> atmManager.verifyPin(accountNumber, request.get("oldPin")))
+                .flatMap(valid -> valid
+                        ? atmManager.updatePin(accountNumber, newPin, expectedVersion)
+                                .then(Mono.fromSupplier(() -> ResponseEntity.ok(Map.of("message", "PIN modifié"))))
+                        : Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).<Map<String, String>>build()))
+                .onErrorResume(VersionConflictException.class, e ->
+                        Mono.just(ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build()))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.notFound().build()))
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Historique d'un compte, en flux : JSON ou NDJSON selon l'en-tête Accept.
+     * ETag = id de la dernière transaction ; 304 sans corps si If-None-Match est inchangé
+     */
+    @GetMapping("/accounts/{accountNumber}/transactions")
+    public Mono<ResponseEntity<Flux<Transaction>>> getTransactions(
+            @PathVariable String accountNumber,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return atmManager.getLastTransactionId(accountNumber)
+                .map(lastId -> {
+                    String etag = ETags.transactions(lastId);
+                    if (ETags.matches(ifNoneMatch, etag)) {
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).<Flux<Transaction>>build();
+                    }
+                    return ResponseEntity.ok().eTag(etag).body(atmManager.getTransactions(accountNumber));
+                });
+    }
+}
@@ -0,0 +1,136 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.Transaction;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+/**
+ * Façade réactive de {@link AtmManager}, pour l'édition WebFlux de l'API.
+ *
+ * Les opérations sur l'argent ne bloquent aucun thread : le résultat est émis
+ * par le thread du journal quand l'enregistrement devient durable.
+ * Les erreurs métier arrivent en IllegalArgumentException dans le flux.
+ */
+@Component
+public class ReactiveAtmManager {
+
+    /**
+     * Transactions lues par page quand l'abonné en redemande
+     */
+    private static final int HISTORY_PAGE = 256;
+
+    private final AtmManager atmManager;
+
+    public ReactiveAtmManager(AtmManager atmManager) {
+        this.atmManager = atmManager;
+    }
+
+    public Flux<Account> getAllAccounts() {
+        return Flux.defer(() -> Flux.fromIterable(atmManager.getAllAccounts()));
+    }
+
+    /**
+     * Le compte, ou un Mono vide s'il n'existe pas
+     */
+    public Mono<Account> getAccount(String accountNumber) {
+        return Mono.fromSupplier(() -> atmManager.getAccount(accountNumber));
+    }
+
+    /**
+     * Version du compte ({@link AtmManager#getVersion}), ou un Mono vide s'il n'existe pas
+     */
+    public Mono<Long> getVersion(String accountNumber) {
+        return Mono.fromSupplier(() -> {
+            long version = atmManager.getVersion(accountNumber);
+            return version < 0 ? null : version;
+        });
+    }
+
+    public Mono<Long> getLastTransactionId(String accountNumber) {
+        return Mono.fromSupplier(() -> atmManager.getLastTransactionId(accountNumber));
+    }
+
+    /**
+     * Crée un compte ; la création attend le journal, sur un thread prévu pour bloquer
+     */
+    public Mono<Account> createAccount(Account account) {
+        return Mono.fromCallable(() -> atmManager.createAccount(account))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    public Mono<Double> getBalance(String accountNumber) {
+        return Mono.fromCallable(() -> atmManager.getBalance(accountNumber));
+    }
+
+    /**
+     * @param idempotencyKey clé d'idempotence, ou null
+     */
+    public Mono<Account> deposit(String accountNumber, double amount, String idempotencyKey) {
+        return deposit(accountNumber, amount, AtmManager.ANY_VERSION, idempotencyKey);
+    }
+
+    /**
+     * Dépôt conditionnel ({@link AtmManager#deposit(String, double, long, String)})
+     */
+    public Mono<Account> deposit(String accountNumber, double amount, long expectedVersion, String idempotencyKey) {
+        return Mono.fromFuture(() -> atmManager.depositAsync(accountNumber, amount, expectedVersion, idempotencyKey));
+    }
+
+    public Mono<Account> withdraw(String accountNumber, double amount, String idempotencyKey) {
+        return withdraw(accountNumber, amount, AtmManager.ANY_VERSION, idempotencyKey);
+    }
+
+    /**
+     * Retrait conditionnel ({@link AtmManager#withdraw(String, double, long, String)})
+     */
+    public Mono<Account> withdraw(String accountNumber, double amount, long expectedVersion, String idempotencyKey) {
+        return Mono.fromFuture(() -> atmManager.withdrawAsync(accountNumber, amount, expectedVersion, idempotencyKey));
+    }
+
+    public Mono<Void> transfer(String fromAccount, String toAccount, double amount, String idempotencyKey) {
+        return transfer(fromAccount, toAccount, amount, AtmManager.ANY_VERSION, idempotencyKey);
+    }
+
+    /**
+     * Virement conditionnel ({@link AtmManager#transfer(String, String, double, long, String)})
+     */
+    public Mono<Void> transfer(String fromAccount, String toAccount, double amount, long expectedVersion,
+                               String idempotencyKey) {
+        return Mono.fromFuture(() -> atmManager.transferAsync(fromAccount, toAccount, amount, expectedVersion,
+                idempotencyKey));
+    }
+
+    public Mono<Boolean> verifyPin(String accountNumber, String pin) {
+        return Mono.fromSupplier(() -> atmManager.verifyPin(accountNumber, pin));
+    }
+
+    /**
+     * Changement de PIN conditionnel ; il attend le journal, sur un thread prévu pour bloquer
+     */
+    public Mono<Void> updatePin(String accountNumber, String newPin, long expectedVersion) {
+        return Mono.fromRunnable(() -> atmManager.updatePin(accountNumber, newPin, expectedVersion))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then();
+    }
+
+    /**
+     * Historique d'un compte, lu page par page au rythme de l'abonné :
+     * un client lent ne fait pas charger tout l'historique en mémoire
+     */
+    public Flux<Transaction> getTransactions(String accountNumber) {
+        return Flux.<List<Transaction>, Long>generate(() -> 0L, (afterId, sink) -> {
+            List<Transaction> page = atmManager.getTransactions(accountNumber, afterId, HISTORY_PAGE);
+            if (page.isEmpty()) {
+                sink.complete();
+                return afterId;
+            }
+            sink.next(page);
+            return Long.parseLong(page.getLast().getId());
+        }).concatMapIterable(page -> page, 1);
+    }
+}
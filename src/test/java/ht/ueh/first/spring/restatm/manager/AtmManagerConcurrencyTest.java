@@ -0,0 +1,168 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountStats;
+import ht.ueh.first.spring.restatm.models.Money;
+import ht.ueh.first.spring.restatm.models.Transaction;
+import ht.ueh.first.spring.restatm.models.VersionConflictException;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Dépôts et retraits concurrents sur un même compte : aucune mise à jour perdue,
+ * le solde ne passe jamais sous zéro, et l'historique suit l'ordre des soldes.
+ */
+class AtmManagerConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 25_000;
+    private static final long INITIAL_CENTS = 100_000;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap"})
+    void concurrentDepositsAndWithdrawalsLoseNoUpdate(String store) throws Exception {
+        try (AtmManager manager = new AtmManager(new AtmRepository(), store, "")) {
+            manager.createAccount(new Account("C1", "Test", INITIAL_CENTS / 100.0, "0000"));
+
+            LongAdder deposited = new LongAdder();
+            LongAdder withdrawn = new LongAdder();
+            LongAdder succeeded = new LongAdder();
+            AtomicLong lowest = new AtomicLong(Long.MAX_VALUE);
+            AtomicBoolean running = new AtomicBoolean(true);
+            CountDownLatch start = new CountDownLatch(1);
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+            try {
+                // Lecteur concurrent : le solde observé ne doit jamais être négatif
+                Future<?> observer = executor.submit(() -> {
+                    while (running.get()) {
+                        lowest.accumulateAndGet(manager.getBalanceCents("C1"), Math::min);
+                    }
+                });
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    SplittableRandom random = new SplittableRandom(t);
+                    writers.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            if (random.nextBoolean()) {
+                                long amount = 1 + random.nextInt(500);
+                                manager.depositCents("C1", amount);
+                                deposited.add(amount);
+                                succeeded.increment();
+                            } else {
+                                // Jusqu'à deux fois les dépôts moyens : une partie des retraits est refusée
+                                long amount = 1 + random.nextInt(1_000);
+                                try {
+                                    long after = manager.withdrawCents("C1", amount).balanceCents();
+                                    lowest.accumulateAndGet(after, Math::min);
+                                    withdrawn.add(amount);
+                                    succeeded.increment();
+                                } catch (IllegalArgumentException e) {
+                                    assertEquals("Insufficient funds", e.getMessage());
+                                }
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> writer : writers) {
+                    writer.get(2, TimeUnit.MINUTES);
+                }
+                running.set(false);
+                observer.get(1, TimeUnit.MINUTES);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            AccountStats stats = manager.getStats("C1");
+            assertEquals(INITIAL_CENTS + deposited.sum() - withdrawn.sum(), stats.balance());
+            assertEquals(succeeded.sum(), stats.transactionCount());
+            assertEquals(deposited.sum(), stats.totalDeposits());
+            assertEquals(withdrawn.sum(), stats.totalWithdrawals());
+            assertEquals(succeeded.sum(), manager.getTransactions("C1").size());
+            assertTrue(withdrawn.sum() > 0, "no withdrawal succeeded");
+            assertTrue(lowest.get() >= 0, "negative balance observed: " + lowest.get());
+
+            // L'historique suit l'ordre des soldes : chaque ligne part du solde de la précédente
+            long balance = INITIAL_CENTS;
+            for (Transaction transaction : manager.getTransactions("C1")) {
+                long amount = Money.toCents(transaction.getAmount());
+                balance += "DEPOT".equals(transaction.getType()) ? amount : -amount;
+                assertEquals(balance, Money.toCents(transaction.getBalanceAfter()), transaction.getId());
+            }
+        }
+    }
+
+    /**
+     * Retraits conditionnels concurrents : une version lue ne sert qu'une fois,
+     * les autres écrivains reçoivent un conflit et relisent
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap"})
+    void conditionalWithdrawalsApplyOncePerVersion(String store) throws Exception {
+        try (AtmManager manager = new AtmManager(new AtmRepository(), store, "")) {
+            manager.createAccount(new Account("C1", "Test", INITIAL_CENTS / 100.0, "0000"));
+
+            LongAdder succeeded = new LongAdder();
+            LongAdder conflicts = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    writers.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD / 10; i++) {
+                            long version = manager.getVersion("C1");
+                            try {
+                                manager.withdraw("C1", 0.01, version, null);
+                                succeeded.increment();
+                            } catch (VersionConflictException e) {
+                                conflicts.increment();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> writer : writers) {
+                    writer.get(2, TimeUnit.MINUTES);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertEquals(INITIAL_CENTS - succeeded.sum(), manager.getBalanceCents("C1"));
+            assertEquals(succeeded.sum(), manager.getTransactions("C1").size());
+            assertEquals(THREADS * (OPERATIONS_PER_THREAD / 10), succeeded.sum() + conflicts.sum());
+
+            // Un retrait refusé ne change pas la version ; une version périmée ne change rien
+            long version = manager.getVersion("C1");
+            assertThrows(IllegalArgumentException.class, () -> manager.withdraw("C1", 1e9, version, null));
+            assertEquals(version, manager.getVersion("C1"));
+            manager.deposit("C1", 1.0, version, null);
+            assertThrows(VersionConflictException.class, () -> manager.updatePin("C1", "1234", version));
+            assertTrue(manager.verifyPin("C1", "0000"));
+            manager.updatePin("C1", "1234", manager.getVersion("C1"));
+            assertTrue(manager.verifyPin("C1", "1234"));
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package ht.ueh.first.spring.restatm.manager;
+
+import ht.ueh.first.spring.restatm.models.Account;
+import ht.ueh.first.spring.restatm.models.AccountSnapshot;
+import ht.ueh.first.spring.restatm.models.BankSnapshot;
+import ht.ueh.first.spring.restatm.models.Money;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Conservation de l'argent : des millions de virements aléatoires concurrents,
+ * dans chaque mode du moteur, ne créent ni ne détruisent d'argent et ne rendent
+ * aucun solde négatif.
+ */
+class AtmManagerTransferStressTest {
+
+    private static final int ACCOUNTS = 100;
+    private static final int THREADS = 8;
+    private static final int TRANSFERS = 2_000_000;
+    private static final long INITIAL_CENTS = 10_000;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "shards", "pipeline"})
+    void randomConcurrentTransfersConserveMoney(String mode) throws Exception {
+        try (AtmManager manager = open(mode)) {
+            String[] numbers = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                numbers[i] = "T" + i;
+                manager.createAccount(new Account(numbers[i], "Test", INITIAL_CENTS / 100.0, "0000"));
+            }
+            long expectedTotal = total(manager);
+
+            LongAdder succeeded = new LongAdder();
+            LongAdder refused = new LongAdder();
+            AtomicReference<String> violation = new AtomicReference<>();
+            AtomicBoolean running = new AtomicBoolean(true);
+            CountDownLatch start = new CountDownLatch(1);
+
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+            try {
+                Future<?> observer = executor.submit(() -> {
+                    while (running.get()) {
+                        BankSnapshot snapshot = manager.getSnapshot();
+                        long sum = 0;
+                        for (AccountSnapshot account : snapshot.accounts()) {
+                            long cents = Money.toCents(account.balance());
+                            if (cents < 0) {
+                                violation.compareAndSet(null, account.accountNumber() + " at " + cents);
+                            }
+                            sum += cents;
+                        }
+                        if (sum != expectedTotal) {
+                            violation.compareAndSet(null, "snapshot total " + sum + " at " + snapshot.sequence());
+                        }
+                    }
+                });
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    SplittableRandom random = new SplittableRandom(t);
+                    writers.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = 0; i < TRANSFERS / THREADS; i++) {
+                            String from = numbers[random.nextInt(ACCOUNTS)];
+                            String to = numbers[random.nextInt(ACCOUNTS)];
+                            // Jusqu'à deux fois le solde de départ : une partie des virements est refusée
+                            long amount = 1 + random.nextInt((int) (2 * INITIAL_CENTS));
+                            try {
+                                manager.transferCents(from, to, amount);
+                                succeeded.increment();
+                            } catch (IllegalArgumentException e) {
+                                assertEquals("Insufficient funds", e.getMessage());
+                                refused.increment();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> writer : writers) {
+                    writer.get(5, TimeUnit.MINUTES);
+                }
+                running.set(false);
+                observer.get(1, TimeUnit.MINUTES);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertNull(violation.get());
+            assertEquals(TRANSFERS, succeeded.sum() + refused.sum());
+            assertTrue(succeeded.sum() > 0 && refused.sum() > 0, "both outcomes should occur");
+            assertEquals(expectedTotal, total(manager));
+            assertEquals(expectedTotal, manager.getAggregates().totalMoney());
+            assertEquals(2 * succeeded.sum(), manager.getAllTransactions().size());
+            for (String number : numbers) {
+                assertTrue(manager.getBalanceCents(number) >= 0, number);
+            }
+        }
+    }
+
+    /**
+     * Des virements vers et depuis des comptes supprimés pendant la course : chaque virement
+     * réussit entièrement ou échoue sans rien débiter, et l'argent restant correspond
+     * exactement aux agrégats (l'argent des comptes supprimés en est retiré)
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "shards", "pipeline"})
+    void transfersRacingDeletionsLoseNoMoney(String mode) throws Exception {
+        int rounds = 200;
+        try (AtmManager manager = open(mode)) {
+            String[] survivors = new String[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                survivors[i] = "S" + i;
+                manager.createAccount(new Account(survivors[i], "Test", INITIAL_CENTS / 100.0, "0000"));
+            }
+
+            AtomicReference<String> victim = new AtomicReference<>();
+            LongAdder succeeded = new LongAdder();
+            AtomicBoolean running = new AtomicBoolean(true);
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    SplittableRandom random = new SplittableRandom(t);
+                    writers.add(executor.submit(() -> {
+                        while (running.get()) {
+                            String target = victim.get();
+                            if (target == null) {
+                                Thread.onSpinWait();
+                                continue;
+                            }
+                            String other = survivors[random.nextInt(THREADS)];
+                            long amount = 1 + random.nextInt(100);
+                            try {
+                                if (random.nextBoolean()) {
+                                    manager.transferCents(other, target, amount);
+                                } else {
+                                    manager.transferCents(target, other, amount);
+                                }
+                                succeeded.increment();
+                            } catch (IllegalArgumentException e) {
+                                // Compte supprimé avant ou pendant le virement, ou solde épuisé
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (int round = 0; round < rounds; round++) {
+                    String number = "V" + round;
+                    manager.createAccount(new Account(number, "Test", INITIAL_CENTS / 100.0, "0000"));
+                    victim.set(number);
+                    Thread.sleep(1);
+                    manager.deleteAccount(number);
+                }
+                running.set(false);
+                for (Future<?> writer : writers) {
+                    writer.get(1, TimeUnit.MINUTES);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertTrue(succeeded.sum() > 0, "no transfer succeeded");
+            assertEquals(total(manager), manager.getAggregates().totalMoney());
+            for (String number : survivors) {
+                assertTrue(manager.getBalanceCents(number) >= 0, number);
+            }
+        }
+    }
+
+    /**
+     * Cent lectures ouvertes en même temps que les virements : chacune reste cohérente,
+     * et les versions qu'elles retiennent ne manquent jamais à l'une d'elles
+     */
+    @Test
+    void manyConcurrentSnapshotsStayConsistent() throws Exception {
+        int observers = 100;
+        int transfers = 200_000;
+        try (AtmManager manager = open("heap")) {
+            String[] numbers = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                numbers[i] = "R" + i;
+                manager.createAccount(new Account(numbers[i], "Test", INITIAL_CENTS / 100.0, "0000"));
+            }
+            long expectedTotal = total(manager);
+
+            AtomicReference<String> violation = new AtomicReference<>();
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder snapshots = new LongAdder();
+            ExecutorService executor = Executors.newFixedThreadPool(observers + THREADS);
+            try {
+                List<Future<?>> readers = new ArrayList<>();
+                for (int r = 0; r < observers; r++) {
+                    readers.add(executor.submit(() -> {
+                        while (running.get()) {
+                            BankSnapshot snapshot = manager.getSnapshot();
+                            long sum = 0;
+                            for (AccountSnapshot account : snapshot.accounts()) {
+                                sum += Money.toCents(account.balance());
+                            }
+                            if (sum != expectedTotal) {
+                                violation.compareAndSet(null, "snapshot total " + sum + " at " + snapshot.sequence());
+                            }
+                            snapshots.increment();
+                        }
+                    }));
+                }
+                List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    SplittableRandom random = new SplittableRandom(t);
+                    writers.add(executor.submit(() -> {
+                        for (int i = 0; i < transfers / THREADS; i++) {
+                            try {
+                                manager.transferCents(numbers[random.nextInt(ACCOUNTS)],
+                                        numbers[random.nextInt(ACCOUNTS)], 1 + random.nextInt(100));
+                            } catch (IllegalArgumentException e) {
+                                // Solde épuisé
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> writer : writers) {
+                    writer.get(5, TimeUnit.MINUTES);
+                }
+                running.set(false);
+                for (Future<?> reader : readers) {
+                    reader.get(1, TimeUnit.MINUTES);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            assertNull(violation.get());
+            assertTrue(snapshots.sum() >= observers, "observers should all read");
+            assertEquals(expectedTotal, total(manager));
+        }
+    }
+
+    private static AtmManager open(String mode) {
+        return switch (mode) {
+            case "heap", "offheap" -> new AtmManager(new AtmRepository(), mode, "");
+            case "shards" -> new AtmManager(new AtmRepository(), "heap", "", 100_000, 86_400, 4, 0);
+            case "pipeline" -> new AtmManager(new AtmRepository(), "heap", "", 100_000, 86_400, 0, 1024);
+            default -> throw new IllegalArgumentException(mode);
+        };
+    }
+
+    /**
+     * Argent de tous les comptes, en centimes
+     */
+    private static long total(AtmManager manager) {
+        long sum = 0;
+        for (Account account : manager.getAllAccounts()) {
+            sum += account.balanceCents();
+        }
+        return sum;
+    }
+}